@@ -0,0 +1,85 @@
+/*
+ *    Config.java - Reads the optional PrinterPi.properties file and provides the settings (with defaults) to the other classes
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+public class Config {
+	public static final String DEFAULT_FILE = "PrinterPi.properties"; //Looked for in the working directory (next to Logo.bin)
+
+	private Properties props;
+	private String scope; //Name looked for as the second part of each key before the general setting (null for none)
+
+	public Config() {
+		this(DEFAULT_FILE);
+	}
+
+	public Config(String path) { //Load the settings from <path> - if the file does not exist every setting keeps its default
+		props = new Properties();
+		File file = new File(path);
+		if (file.exists()) {
+			try (FileInputStream in = new FileInputStream(file)) {
+				props.load(in);
+			} catch (IOException e) {
+				Log.error("Config", "Could not read " + path + ", using defaults. " + e.toString());
+			}
+		}
+	}
+
+	private Config(Properties props, String scope) {
+		this.props = props;
+		this.scope = scope;
+	}
+
+	public Config scoped(String name) { //View of the settings where "group.<name>.key" overrides "group.key" (e.g. printer.bench2.device overrides printer.device)
+		return new Config(props, name);
+	}
+
+	public String getString(String key, String def) { //Get the setting <key> (or <def> if not set)
+		String value = get(key);
+		return value == null ? def : value.trim();
+	}
+
+	public int getInt(String key, int def) { //Get the integer setting <key> (or <def> if not set or invalid)
+		String value = get(key);
+		if (value == null) return def;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			Log.error("Config", "Setting " + key + " is not a number: " + value);
+			return def;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean def) { //Get the boolean setting <key> (or <def> if not set)
+		String value = get(key);
+		return value == null ? def : Boolean.parseBoolean(value.trim());
+	}
+
+	private String get(String key) { //Look up <key>, trying the scoped version first
+		int dot = key.indexOf('.');
+		if (scope != null && dot > 0) {
+			String value = props.getProperty(key.substring(0, dot) + "." + scope + key.substring(dot));
+			if (value != null) return value;
+		}
+		return props.getProperty(key);
+	}
+}
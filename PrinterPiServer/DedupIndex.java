@@ -0,0 +1,121 @@
+/*
+ *    DedupIndex.java - Remembers recently queued requests (by idempotency key or packet contents) so a repeated request is not printed twice
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class DedupIndex {
+	/*
+		A request is first claimed: if the same key was claimed within the window, the job IDs it was given are returned instead (waiting
+		for them if that request is still being queued). Otherwise the caller queues the job(s) and then calls done with the IDs, or
+		release if they were not accepted (so a retry is not mistaken for a duplicate). Entries are kept in the order they were claimed,
+		so expired ones are always at the front, and the oldest are dropped once there are more than <maxEntries> (never one still being
+		queued, so its retries keep waiting for it rather than being printed again).
+	*/
+	private static class Entry {
+		long[] ids; //null while the request is being queued
+		long time; //When the key was claimed (ms)
+	}
+
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private long window; //How long a key is remembered (ms)
+	private int maxEntries;
+	private boolean content; //Also find repeats of requests without a key by their contents
+
+	public DedupIndex(long window, int maxEntries, boolean content) {
+		this.window = window;
+		this.maxEntries = maxEntries;
+		this.content = content;
+	}
+
+	public static DedupIndex fromConfig(Config config) { //Create the index set by dedup.window, dedup.size and dedup.content
+		return new DedupIndex(config.getInt("dedup.window", 60000), config.getInt("dedup.size", 1024), config.getBoolean("dedup.content", false));
+	}
+
+	public String keyOf(String requestKey, Packet pkt) { //Key for a request: its idempotency key if it has one, else a hash of the packet (or null if contents are not checked)
+		if (requestKey != null) return "key:" + requestKey;
+		if (!content || window <= 0) return null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(PacketCodec.encode(pkt));
+			StringBuilder hex = new StringBuilder("sha:");
+			for (int i=0; i<16; i++) hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) { //Always available
+			return null;
+		}
+	}
+
+	public synchronized long[] claim(String key) { //Claim <key> - returns the job IDs of an earlier request with the same key, or null if this is the first (the caller must then call done or release)
+		if (key == null || window <= 0) return null;
+		long now = now();
+		expire(now);
+		Entry e;
+		while ((e = entries.get(key)) != null && e.ids == null) { //Same request is being queued right now - wait for its IDs
+			try {
+				wait(1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		if (e != null) return e.ids;
+		e = new Entry();
+		e.time = now;
+		entries.put(key, e);
+		if (entries.size() > maxEntries) {
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().ids != null) { //Oldest request already queued
+					it.remove();
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	public synchronized void done(String key, long[] ids) { //The request claiming <key> was queued as jobs <ids>
+		if (key == null) return;
+		Entry e = entries.get(key);
+		if (e != null) e.ids = ids;
+		notifyAll();
+	}
+
+	public synchronized void release(String key) { //The request claiming <key> was not queued - forget it
+		if (key == null) return;
+		entries.remove(key);
+		notifyAll();
+	}
+
+	private void expire(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (now - e.time < window) break;
+			if (e.ids != null) it.remove(); //Requests still being queued are kept until they finish
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
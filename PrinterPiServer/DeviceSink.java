@@ -0,0 +1,60 @@
+/*
+ *    DeviceSink.java - Printer output to a serial/USB device, pty or file
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+public class DeviceSink implements OutputSink {
+	private Closeable file;
+	private OutputStream out;
+	private InputStream in; //null unless opened for reading
+
+	public DeviceSink(String path, boolean read) throws IOException { //Open <path> for writing (and for reading too if <read>)
+		if (read) {
+			RandomAccessFile raf = new RandomAccessFile(path, "rw"); //One descriptor for both directions
+			file = raf;
+			out = new FileOutputStream(raf.getFD());
+			in = new FileInputStream(raf.getFD());
+		} else {
+			out = new FileOutputStream(path);
+			file = out;
+		}
+	}
+
+	public OutputStream output() {
+		return out;
+	}
+
+	public InputStream input() {
+		return in;
+	}
+
+	public boolean flowControlled() { //Paced by the Transmitter, unless serial.flowControl is set
+		return false;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ *    GpioBackend.java - Interface to the GPIO pins, so Hardware does not depend on how the pins are reached
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+
+public interface GpioBackend {
+	void setup(int pin, int direction) throws IOException; //Get BCM pin <pin> ready for reading (<direction> 0) or writing (1)
+
+	void write(int pin, int level) throws IOException; //Set an output pin to <level> (0 or 1)
+
+	int read(int pin) throws IOException; //Read the level of a pin (0 or 1)
+
+	void release(int pin); //Give the pin back to the system
+
+	void close(); //Release every pin
+}
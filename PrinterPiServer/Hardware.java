@@ -1,5 +1,5 @@
 /*
- *   Hardware.java - Provides a way to control the GPIO pins through the sysfs interface
+ *   Hardware.java - Provides a way to control the GPIO pins (through a GpioBackend, normally sysfs)
  *
  *   Copyright (C) 2020  PolarPiBerry
  *
@@ -18,95 +18,58 @@
 */
 
 
-import java.io.FileWriter;
-import java.io.FileReader;
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
 
 
 public class Hardware {
-	LinkedList<Pin> pins;
+	public static final int PIN_COUNT = 28; //BCM 0 to 27
+
+	private GpioBackend gpio;
+	private Pin[] pins = new Pin[PIN_COUNT]; //Pins set up, by BCM number
+
+	public Hardware(GpioBackend gpio) {
+		this.gpio = gpio;
+	}
 
 	public Hardware() {
-		pins = new LinkedList<>();
+		this(new SysfsGpio());
+	}
+
+	public static Hardware fromConfig(Config config) { //Use the sysfs GPIO directory set by gpio.root
+		return new Hardware(new SysfsGpio(new File(config.getString("gpio.root", "/sys/class/gpio"))));
 	}
 
 	public boolean setup(Pin p) { //Setup the BCM pin <pin> for reading/writing (<direction> is 0 for reading, 1 for writing))
+		if (p.getNumber() < 0 || p.getNumber() >= PIN_COUNT) {
+			Log.error("Hardware", "GPIO " + p.getNumber() + " does not exist. The number must be between 0 and " + (PIN_COUNT - 1));
+			return false;
+		}
+		if (p.getDirection() != 0 && p.getDirection() != 1) {
+			Log.error("Hardware", "GPIO " + p.getNumber() + " does not have a valid direction: " + p.getDirection() + ". Direction must be either 0 or 1 for input or output, respectively");
+			return false;
+		}
 		try {
-			FileWriter gpio; //Used to point to sysfs GPIO files
-			File temp = new File("/sys/class/gpio/gpio" + p.getNumber());
-			if (!temp.exists()) { //Only export if the pin doesn't exist
-				gpio = new FileWriter(new File("/sys/class/gpio/export"));
-				gpio.write("" + p.getNumber());
-				gpio.close();
-			}
-			gpio = new FileWriter(new File("/sys/class/gpio/gpio" + p.getNumber() + "/direction"));
-			if (p.getDirection() == 0) { //Set input pin
-				gpio.write("in");
-			} else if (p.getDirection() == 1) { //Set output pin
-				gpio.write("out");
-			} else {
-				throw new IllegalArgumentException("Direction must be either 0 or 1 for input or output, respectively");
-			}
-			gpio.close();
-			pins.add(p); //Add for error checking when writing
+			gpio.setup(p.getNumber(), p.getDirection());
+			pins[p.getNumber()] = p; //Add for error checking when writing
 			return true;
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Hardware", "Could not set up GPIO " + p.getNumber() + ". " + e.toString());
 			return false;
 		}
 	}
 
 	public void close() { //General destructor method - closes all open GPIO pins
-		try {
-			for (Pin pin : pins) {
-				FileWriter gpio = new FileWriter(new File("/sys/class/gpio/unexport"));
-				gpio.write(pin.getNumber());
-				gpio.close();
-			}
-		} catch (IOException e) {} //Nothing to do
-	}
-
-	private void _LEDFlash(Pin led, int loops, int duration) { //Helper method - to be run with a separate thread
-		Thread thr = new Thread() {
-			public void run() {
-				try {
-					for (int i=0; i<loops; i++) {
-						write(led, 1);
-						Thread.sleep(duration);
-						write(led, 0);
-						Thread.sleep(duration);
-				}
-				} catch (Exception e) {}
-			}
-		};
-		thr.start();
-	}
-
-
-	public void readyLEDFlash(Pin led) { //Flash the LED to indicate status
-		_LEDFlash(led, 10, 250);
-	}
-
-	public void errorLEDFlash(Pin led) {
-		_LEDFlash(led, 75, 50);
-	}
-
-	public void printingLEDFlash(Pin led) {
-		_LEDFlash(led, 25, 100);
+		gpio.close();
+		for (int i=0; i<pins.length; i++) pins[i] = null;
 	}
 
 	public boolean write(Pin pin, int level) { //Write the pin <pin> value level (must be either 0 or 1)
-		if (pins.contains(pin)) { //Uses Pin equals method to test that the pin exists and is in the correct direction
+		if (level != 0 && level != 1)
+			throw new IllegalArgumentException("Pin value must be either 0 or 1 for low or high, respectively");
+		if (pin.equals(setUp(pin.getNumber()))) { //Uses Pin equals method to test that the pin exists and is in the correct direction
 			try {
-				FileWriter gpio = new FileWriter(new File("/sys/class/gpio/gpio" + pin.getNumber() + "/value"));
-				if (level == 0 || level == 1) {
-					gpio.write("" + level);
-				} else {
-					throw new IllegalArgumentException("Pin value must be either 0 or 1 for low or high, respectively");
-				}
-				gpio.close();
+				gpio.write(pin.getNumber(), level);
 				return true;
 			} catch (IOException e) {};
 		}
@@ -114,14 +77,15 @@ public class Hardware {
 	}
 
 	public int read(Pin pin) { //Read the pin <pin> value
-		if (pins.contains(pin)) { //Uses Pin equals method to test that the pin exists and is in the correct direction
+		if (pin.equals(setUp(pin.getNumber()))) { //Uses Pin equals method to test that the pin exists and is in the correct direction
 			try {
-				FileReader gpio = new FileReader(new File("/sys/class/gpio/gpio" + pin.getNumber() + "/value"));
-				String level = "" + gpio.read();
-				gpio.close();
-				return Integer.parseInt(level); //All successful, so return the value
+				return gpio.read(pin.getNumber()); //All successful, so return the value
 			} catch (IOException e) {};
 		}
 		return -1; //Return -1 if failed
 	}
+
+	private Pin setUp(int number) { //The pin set up as BCM <number> (null if none)
+		return number >= 0 && number < PIN_COUNT ? pins[number] : null;
+	}
 }
@@ -21,10 +21,10 @@ import java.io.Serializable;
 
 public class Item implements Serializable {
 	public String desc, sku;
-	public double price;
+	public long price; //Price of the line (in cents)
 	public int qty;
 
-	public Item(String desc, String sku, int qty, double price) {
+	public Item(String desc, String sku, int qty, long price) {
 		this.desc = desc;
 		this.sku = sku;
 		this.qty = qty;
@@ -32,6 +32,6 @@ public class Item implements Serializable {
 	}
 
 	public String toString() {
-		return "Description: " + this.desc + " SKU: " + this.sku + " QTY: " + this.qty + " Price: " + this.price;
+		return "Description: " + this.desc + " SKU: " + this.sku + " QTY: " + this.qty + " Price: " + Money.toString(this.price);
 	}
 }
@@ -0,0 +1,147 @@
+/*
+ *    JobQueue.java - Bounded queue of print jobs that hands out the most important job first (by deadline and priority) instead of the oldest
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class JobQueue {
+	/*
+		Order jobs are printed in:
+		1. Jobs due within <urgent> ms of their deadline (or past it), earliest deadline first
+		2. Higher priority first
+		3. Earlier deadline first (jobs without a deadline last)
+		4. Lower job number (older) first
+
+		Whether a job is urgent changes as time passes, so the order is worked out when each job is taken rather than kept sorted. The
+		queue is small (its capacity is spooler.capacity), so looking through it for each job costs far less than printing one.
+	*/
+	private List<PrintJob> jobs;
+	private int capacity;
+	private long urgent; //Time before a deadline at which a job goes ahead of higher priorities (ms)
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+	private Condition notFull = lock.newCondition();
+
+	public JobQueue(int capacity, long urgent) {
+		this.jobs = new ArrayList<PrintJob>(capacity);
+		this.capacity = capacity;
+		this.urgent = urgent;
+	}
+
+	public boolean offer(PrintJob job) { //Add <job> if there is room
+		lock.lock();
+		try {
+			if (jobs.size() >= capacity) return false;
+			add(job);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean offer(PrintJob job, long timeout, TimeUnit unit) throws InterruptedException { //Add <job>, waiting up to <timeout> for room
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (jobs.size() >= capacity) {
+				if (nanos <= 0) return false;
+				nanos = notFull.awaitNanos(nanos);
+			}
+			add(job);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public PrintJob take() throws InterruptedException { //Remove the job to print next, waiting until there is one
+		lock.lockInterruptibly();
+		try {
+			while (jobs.isEmpty()) notEmpty.await();
+			long now = System.currentTimeMillis();
+			int best = 0;
+			for (int i=1; i<jobs.size(); i++) {
+				if (compare(jobs.get(i), jobs.get(best), now) < 0) best = i;
+			}
+			return remove(best);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public PrintJob dropLast() { //Remove the oldest job of the lowest priority (the job least worth keeping), or null if empty
+		lock.lock();
+		try {
+			if (jobs.isEmpty()) return null;
+			int worst = 0;
+			for (int i=1; i<jobs.size(); i++) {
+				PrintJob j = jobs.get(i);
+				PrintJob w = jobs.get(worst);
+				if (j.priority < w.priority || (j.priority == w.priority && j.id < w.id)) worst = i;
+			}
+			return remove(worst);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return jobs.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	private int compare(PrintJob a, PrintJob b, long now) { //Negative if <a> should print before <b>
+		boolean ua = a.deadline != 0 && a.deadline - now <= urgent;
+		boolean ub = b.deadline != 0 && b.deadline - now <= urgent;
+		if (ua != ub) return ua ? -1 : 1;
+		if (ua) return Long.compare(a.deadline, b.deadline);
+		if (a.priority != b.priority) return a.priority > b.priority ? -1 : 1;
+		if (a.deadline != b.deadline) {
+			if (a.deadline == 0) return 1;
+			if (b.deadline == 0) return -1;
+			return Long.compare(a.deadline, b.deadline);
+		}
+		return Long.compare(a.id, b.id);
+	}
+
+	private void add(PrintJob job) {
+		jobs.add(job);
+		notEmpty.signal();
+	}
+
+	private PrintJob remove(int i) {
+		int last = jobs.size() - 1;
+		PrintJob job = jobs.get(i);
+		jobs.set(i, jobs.get(last)); //Order in the list does not matter
+		jobs.remove(last);
+		notFull.signal();
+		return job;
+	}
+}
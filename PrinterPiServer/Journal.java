@@ -0,0 +1,266 @@
+/*
+ *    Journal.java - Append only file of queued and finished print jobs, so jobs still waiting survive a crash or shutdown
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+public class Journal {
+	/*
+		Record format: type (1 byte, 'E' queued or 'C' finished), job ID (8 bytes), payload length (4 bytes), payload (PacketCodec data for 'E'),
+		CRC32 of everything before it (4 bytes). A record cut short by a crash fails its CRC and is dropped, along with anything after it.
+
+		Records are written by one thread in batches: every record waiting is written together and then one fsync covers the whole batch
+		(group commit), so many connections queueing at once share the cost of each fsync.
+	*/
+	private static final byte QUEUED = 'E';
+	private static final byte DONE = 'C';
+	private static final int OVERHEAD = 1 + 8 + 4 + 4;
+	private static final Record CLOSE = new Record((byte) 0, 0, new byte[0]); //Put in the queue by close (never written)
+
+	private File file;
+	private FileChannel channel;
+	private boolean sync; //Wait for each queued job to reach the disk before it is accepted
+	private long compactSize; //Rewrite the file with only the waiting jobs once it grows past this
+	private Map<Long, byte[]> live = new LinkedHashMap<Long, byte[]>(); //Queued jobs not yet finished (only used by the writer thread after startup)
+	private LinkedBlockingQueue<Record> pending = new LinkedBlockingQueue<Record>();
+	private Thread writer;
+
+	private static class Record {
+		byte type;
+		long id;
+		byte[] payload;
+		CountDownLatch written = new CountDownLatch(1);
+		volatile IOException failed; //Why the record could not be written (null once it is on disk)
+
+		Record(byte type, long id, byte[] payload) {
+			this.type = type;
+			this.id = id;
+			this.payload = payload;
+		}
+	}
+
+	public Journal(File file, boolean sync, long compactSize) {
+		this.file = file;
+		this.sync = sync;
+		this.compactSize = compactSize;
+	}
+
+	public static Journal fromConfig(Config config) { //Create the journal set by journal.file (null if journal.file is empty)
+		String path = config.getString("journal.file", "PrinterPi.journal");
+		if (path.isEmpty()) return null;
+		return new Journal(new File(path), config.getBoolean("journal.sync", true), config.getInt("journal.compactSize", 1048576));
+	}
+
+	public List<PrintJob> open() throws IOException { //Read the jobs left waiting by the last run (in the order they were queued), compact the file and start writing
+		if (file.exists()) {
+			byte[] data = Files.readAllBytes(file.toPath());
+			int pos = 0;
+			CRC32 crc = new CRC32();
+			while (data.length - pos >= OVERHEAD) {
+				ByteBuffer rec = ByteBuffer.wrap(data, pos, data.length - pos);
+				byte type = rec.get();
+				long id = rec.getLong();
+				int len = rec.getInt();
+				if (len < 0 || len > data.length - pos - OVERHEAD) break;
+				crc.reset();
+				crc.update(data, pos, 13 + len);
+				if ((int) crc.getValue() != ByteBuffer.wrap(data, pos + 13 + len, 4).getInt()) break;
+				if (type == QUEUED) {
+					byte[] payload = new byte[len];
+					System.arraycopy(data, pos + 13, payload, 0, len);
+					live.put(id, payload);
+				} else {
+					live.remove(id);
+				}
+				pos += OVERHEAD + len;
+			}
+			if (pos < data.length)
+				Log.error("Journal", "Dropped " + (data.length - pos) + " bytes of incomplete journal records");
+		}
+		List<PrintJob> jobs = new ArrayList<PrintJob>();
+		for (Map.Entry<Long, byte[]> e: live.entrySet()) {
+			try {
+				byte[] payload = e.getValue();
+				jobs.add(PrintJob.restore(e.getKey(), PacketCodec.decode(payload, 0, payload.length)));
+			} catch (IOException ex) {
+				Log.error("Journal", "Could not read job " + e.getKey() + " from the journal. " + ex.toString());
+			}
+		}
+		compact();
+		writer = new Thread("Journal") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		return jobs;
+	}
+
+	public void queued(PrintJob job) throws IOException { //Record a newly queued job (waits until it is on disk if journal.sync is set)
+		queued(Collections.singletonList(job));
+	}
+
+	public void queued(List<PrintJob> jobs) throws IOException { //Record several new jobs, written together (waits until they are all on disk if journal.sync is set)
+		List<Record> records = new ArrayList<Record>(jobs.size());
+		for (PrintJob job: jobs) {
+			Record r = new Record(QUEUED, job.id, PacketCodec.encode(job.packet));
+			records.add(r);
+			pending.add(r);
+		}
+		if (sync && !records.isEmpty()) {
+			try {
+				records.get(records.size() - 1).written.await(); //Records are written in order, so the rest have been too
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing the journal");
+			}
+			for (Record r: records) { //They may have been split over several batches
+				if (r.failed != null) throw new IOException("Job " + r.id + " could not be written to the journal", r.failed);
+			}
+		}
+	}
+
+	public void done(long id) { //Record that a job has finished (or been dropped) - it will not be replayed
+		pending.add(new Record(DONE, id, new byte[0]));
+	}
+
+	public void close() { //Stop the writer once everything waiting has been written, waiting (up to a second) for it to finish
+		if (writer == null) return;
+		pending.add(CLOSE); //Not an interrupt, which would close the file channel in the middle of a write
+		try {
+			writer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() { //Writer thread: write all waiting records, fsync once, then wake everyone waiting on them
+		List<Record> batch = new ArrayList<Record>();
+		boolean closing = false;
+		while (!closing) {
+			try {
+				batch.add(pending.take());
+			} catch (InterruptedException e) {
+				closing = true; //Finish writing what is left, then stop
+			}
+			pending.drainTo(batch);
+			closing |= batch.remove(CLOSE);
+			if (batch.isEmpty()) continue;
+			boolean written = write(batch);
+			for (Record r: batch) r.written.countDown();
+			batch.clear();
+			try {
+				if (written && channel.size() > compactSize) compact();
+			} catch (IOException e) {
+				Log.error("Journal", "Could not compact the journal. " + e.toString());
+			}
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {} //Nothing to do
+	}
+
+	private boolean write(List<Record> batch) { //Write <batch> and fsync once - if that fails, the file is cut back to before it and each record is marked failed
+		long start = -1;
+		try {
+			int size = 0;
+			for (Record r: batch) size += OVERHEAD + r.payload.length;
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			for (Record r: batch) encode(buf, r);
+			buf.flip();
+			start = channel.position();
+			while (buf.hasRemaining()) channel.write(buf);
+			channel.force(false);
+		} catch (IOException e) {
+			Log.error("Journal", "Could not write the journal. " + e.toString());
+			for (Record r: batch) r.failed = e;
+			try {
+				if (start >= 0) channel.truncate(start); //A partly written record would hide every record after it
+			} catch (IOException te) {} //Nothing more to do
+			return false;
+		}
+		for (Record r: batch) {
+			if (r.type == QUEUED) {
+				live.put(r.id, r.payload);
+			} else {
+				live.remove(r.id);
+			}
+		}
+		return true;
+	}
+
+	private void compact() throws IOException { //Rewrite the journal with only the jobs still waiting, replacing the old file in one step (the old file is kept, and still written to, if that fails)
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			for (Map.Entry<Long, byte[]> e: live.entrySet()) {
+				ByteBuffer buf = ByteBuffer.allocate(OVERHEAD + e.getValue().length);
+				encode(buf, new Record(QUEUED, e.getKey(), e.getValue()));
+				buf.flip();
+				while (buf.hasRemaining()) out.write(buf);
+			}
+			out.force(false);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); //The open channel now writes to the journal
+		} catch (IOException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		syncDirectory();
+		FileChannel old = channel;
+		channel = out; //Records are added after the ones just written
+		if (old != null) {
+			try {
+				old.close();
+			} catch (IOException e) {} //Replaced already
+		}
+	}
+
+	private void syncDirectory() { //fsync the folder holding the journal, so the rename itself survives a power cut
+		File dir = file.getAbsoluteFile().getParentFile();
+		try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			d.force(true);
+		} catch (IOException e) { //Folders cannot be opened on some systems (not on Linux)
+			Log.debug("Journal", "Could not sync " + dir + ". " + e.toString());
+		}
+	}
+
+	private static void encode(ByteBuffer buf, Record r) { //Add <r> to <buf> in the record format
+		int start = buf.position();
+		buf.put(r.type).putLong(r.id).putInt(r.payload.length).put(r.payload);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), start, buf.position() - start);
+		buf.putInt((int) crc.getValue());
+	}
+}
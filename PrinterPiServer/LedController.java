@@ -0,0 +1,153 @@
+/*
+ *    LedController.java - Drives the status LED from one timer thread, showing the most important pattern active at the time
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class LedController {
+	/*
+		Each pattern can be shown for a while (show) and held until it is cleared (hold), separately: a pattern is active while either
+		lasts, so a short show does not end a hold and clearing a hold does not cut a show short. Patterns do not stack: showing a
+		pattern that is already active only extends it, and when several are active only the one with the highest priority drives the LED.
+		Once it ends, the next one still active carries on. All of the pin writes are made by the single timer thread, which only wakes up
+		when the LED next has to change, and the LED is left off when nothing is active.
+	*/
+	public enum Pattern { //Lowest priority first
+		READY(250, 5000), //Slow flash once the server has started
+		PRINTING(100, 5000), //Flash while jobs are being printed
+		BACKLOG(500, 0), //Slow flash while the queue is backed up (held until cleared)
+		ERROR(50, 7500); //Fast flash after a bad request
+
+		final int half; //Time on (and then off) for each flash (ms)
+		final int duration; //Time the pattern is shown for (ms)
+
+		Pattern(int half, int duration) {
+			this.half = half;
+			this.duration = duration;
+		}
+	}
+
+	private static final Pattern[] PATTERNS = Pattern.values();
+
+	private Hardware hardware;
+	private Pin led;
+	private int backlog; //Queue depth at which BACKLOG is shown
+	private ScheduledExecutorService timer;
+	private long[] started = new long[PATTERNS.length]; //When each pattern became active (ms)
+	private long[] until = new long[PATTERNS.length]; //When each pattern's show ends (ms, 0 for none)
+	private boolean[] held = new boolean[PATTERNS.length]; //Patterns held until cleared
+	private AtomicBoolean changed = new AtomicBoolean(); //An update is already waiting to run on the timer
+	private ScheduledFuture<?> next; //Next LED change (only used by the timer thread)
+	private int level = -1; //Level last written to the LED (only used by the timer thread)
+
+	public LedController(Hardware hardware, Pin led, int backlog) {
+		this.hardware = hardware;
+		this.led = led;
+		this.backlog = backlog;
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "LED");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public static LedController fromConfig(Hardware hardware, Pin led, Config config) {
+		return new LedController(hardware, led, config.getInt("led.backlog", 8));
+	}
+
+	public void show(Pattern p) { //Show <p> for its duration (or longer, if it is already being shown or held)
+		int i = p.ordinal();
+		synchronized (this) {
+			long now = now();
+			if (!active(i, now)) started[i] = now; //Not active, so start from the beginning of the pattern
+			until[i] = Math.max(until[i], now + p.duration);
+		}
+		changed();
+	}
+
+	public void hold(Pattern p, boolean on) { //Show <p> until it is turned off again (a show still running carries on)
+		int i = p.ordinal();
+		synchronized (this) {
+			if (held[i] == on) return; //Nothing to change (such as BACKLOG already off)
+			long now = now();
+			if (!active(i, now)) started[i] = now;
+			held[i] = on;
+		}
+		changed();
+	}
+
+	public void setQueueDepth(int depth) { //Show BACKLOG while <depth> jobs or more are waiting
+		hold(Pattern.BACKLOG, backlog > 0 && depth >= backlog);
+	}
+
+	public void close() { //Turn the LED off and stop the timer
+		timer.shutdownNow();
+		hardware.write(led, 0);
+	}
+
+	private boolean active(int i, long now) {
+		return held[i] || until[i] > now;
+	}
+
+	private void changed() { //Have the timer thread update the LED
+		if (changed.compareAndSet(false, true)) {
+			try {
+				timer.execute(this::update);
+			} catch (RejectedExecutionException e) {} //Closed
+		}
+	}
+
+	private void update() { //Timer thread: set the LED for the highest priority active pattern and wait for its next change
+		changed.set(false);
+		long now = now();
+		Pattern show = null;
+		long start = 0;
+		long end = 0;
+		synchronized (this) {
+			for (int i=0; i<PATTERNS.length; i++) {
+				if (active(i, now)) {
+					show = PATTERNS[i];
+					start = started[i];
+					end = held[i] ? Long.MAX_VALUE : until[i];
+				}
+			}
+		}
+		int want = 0;
+		long wait = -1;
+		if (show != null) {
+			long t = now - start;
+			want = (t / show.half) % 2 == 0 ? 1 : 0;
+			wait = Math.min(show.half - t % show.half, end - now);
+		}
+		if (want != level) {
+			hardware.write(led, want);
+			level = want;
+		}
+		if (next != null) next.cancel(false);
+		next = wait < 0 ? null : timer.schedule(this::update, wait, TimeUnit.MILLISECONDS);
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ *    Log.java - Writes log lines on a background thread, so the connection and printing threads never wait for the console
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class Log {
+	/*
+		Each line is put in a bounded queue and written (and flushed once the queue is empty) by one daemon thread. If the queue is full,
+		the line is dropped and counted (printerpi_log_dropped_total) rather than holding up the caller. Lines are written either as
+		"(Source) -LEVEL- message" (log.format = plain) or as one JSON object per line (log.format = json), with the time, level, source
+		and message as separate fields.
+	*/
+	public enum Level {
+		DEBUG, //Every connection and header
+		INFO,
+		ERROR
+	}
+
+	private static class Line {
+		long time; //ms since 1970
+		Level level;
+		String source; //Class the line is from
+		String message;
+	}
+
+	private static volatile Level level = Level.INFO; //Lowest level written
+	private static volatile boolean json;
+	private static final BlockingQueue<Line> queue = new ArrayBlockingQueue<Line>(1024); //Lines waiting to be written
+	private static volatile Thread writer;
+
+	public static void configure(Config config) { //Apply the log.level and log.format settings
+		try {
+			level = Level.valueOf(config.getString("log.level", "INFO").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			error("Log", "Unknown log level, using INFO");
+		}
+		json = config.getString("log.format", "plain").equalsIgnoreCase("json");
+	}
+
+	public static boolean isEnabled(Level l) { //Whether lines at level <l> are written (to skip building them otherwise)
+		return l.compareTo(level) >= 0;
+	}
+
+	public static void debug(String source, String message) {
+		log(Level.DEBUG, source, message);
+	}
+
+	public static void info(String source, String message) {
+		log(Level.INFO, source, message);
+	}
+
+	public static void error(String source, String message) {
+		log(Level.ERROR, source, message);
+	}
+
+	public static void log(Level l, String source, String message) {
+		if (!isEnabled(l)) return;
+		Line line = new Line();
+		line.time = System.currentTimeMillis();
+		line.level = l;
+		line.source = source;
+		line.message = message;
+		start();
+		if (!queue.offer(line)) Metrics.LOG_DROPPED.inc();
+	}
+
+	public static void flush() { //Wait (up to a second) for the lines so far to be written - such as before exiting
+		long end = System.currentTimeMillis() + 1000;
+		while (!queue.isEmpty() && System.currentTimeMillis() < end) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private static void start() { //Start the writing thread (once)
+		if (writer != null) return;
+		synchronized (Log.class) {
+			if (writer != null) return;
+			writer = new Thread("Log") {
+				public void run() {
+					Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 8192);
+					StringBuilder text = new StringBuilder(256);
+					long dropped = 0;
+					while (true) {
+						try {
+							Line line = queue.take();
+							do {
+								text.setLength(0);
+								format(line, text);
+								out.write(text.toString());
+							} while ((line = queue.poll()) != null);
+							long now = Metrics.LOG_DROPPED.get();
+							if (now != dropped) {
+								out.write("(Log) -ERROR- " + (now - dropped) + " log lines dropped\n");
+								dropped = now;
+							}
+							out.flush();
+						} catch (InterruptedException | IOException e) {} //Nowhere to report it
+					}
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(Log::flush)); //Write what is left when the server is stopped
+		}
+	}
+
+	private static void format(Line line, StringBuilder out) {
+		if (!json) {
+			out.append('(').append(line.source).append(") -").append(line.level).append("- ").append(line.message).append('\n');
+			return;
+		}
+		out.append("{\"time\":\"").append(Instant.ofEpochMilli(line.time)).append("\",\"level\":\"").append(line.level).append("\",\"source\":\"").append(line.source).append("\",\"msg\":\"");
+		escape(line.message, out);
+		out.append("\"}\n");
+	}
+
+	public static StringBuilder escape(String s, StringBuilder out) { //Add <s> to <out> escaped for use inside a JSON string
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') out.append('\\').append(c);
+			else if (c == '\n') out.append("\\n");
+			else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+			else out.append(c);
+		}
+		return out;
+	}
+}
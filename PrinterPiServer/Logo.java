@@ -0,0 +1,157 @@
+/*
+ *    Logo.java - The receipt logo, read and checked once at startup and kept in memory as a ready to send raster image command
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class Logo {
+	public static final Logo EMPTY = new Logo(new byte[0], 0, 0, 0, 0, false);
+
+	private static final int HEADER = 8; //GS v 0 m xL xH yL yH
+
+	private final byte[] bits; //Packed 1 bit rows (MSB is the leftmost dot, 1 is black)
+	private final int width; //Bytes per row
+	private final int height; //Rows
+	private final int mode; //GS v 0 scaling (0 normal, 1 double width, 2 double height, 3 both)
+	private final byte[] command; //Ready to send GS v 0 command(s) - one per band (empty if there is no logo)
+	private final boolean stored; //Printed from the printer's NV memory instead of sent every time
+
+	private Logo(byte[] bits, int width, int height, int mode, int bandHeight, boolean stored) {
+		this.bits = bits;
+		this.width = width;
+		this.height = height;
+		this.mode = mode;
+		this.stored = stored;
+		if (bandHeight <= 0 || bandHeight > height) bandHeight = height;
+		int bands = height == 0 ? 0 : (height + bandHeight - 1) / bandHeight;
+		command = new byte[bands * HEADER + bits.length];
+		for (int band=0, row=0, i=0; band<bands; band++, row+=bandHeight) { //Split into bands so printers with small buffers are not overfilled by one command
+			int rows = Math.min(bandHeight, height - row);
+			command[i] = 0x1d; command[i+1] = 0x76; command[i+2] = 0x30; command[i+3] = (byte) mode;
+			command[i+4] = (byte) (width % 256); command[i+5] = (byte) (width / 256);
+			command[i+6] = (byte) (rows % 256); command[i+7] = (byte) (rows / 256);
+			System.arraycopy(bits, row * width, command, i + HEADER, rows * width);
+			i += HEADER + rows * width;
+		}
+	}
+
+	public static Logo fromRaster(byte[] bits, int width, int height, int mode, int bandHeight) { //Create a logo from packed 1 bit rows (<width> bytes per row), sent in bands of <bandHeight> rows (0 for one band)
+		if (width < 1 || height < 1 || bits.length != width * height)
+			throw new IllegalArgumentException("Raster must be " + width + "x" + height + " bytes");
+		return new Logo(bits.clone(), width, height, mode, bandHeight, false);
+	}
+
+	public static Logo load(String path, int bandHeight) throws IOException { //Read and check a Logo.bin file of one or more GS v 0 commands (an empty file means no logo)
+		byte[] data = Files.readAllBytes(new File(path).toPath());
+		if (data.length == 0) return EMPTY;
+		ByteArrayOutputStream bits = new ByteArrayOutputStream(data.length);
+		int width = -1, height = 0, mode = 0;
+		for (int i=0; i<data.length; ) {
+			if (data.length - i < HEADER || data[i] != 0x1d || data[i+1] != 0x76 || data[i+2] != 0x30)
+				throw new IOException(path + " is not a raster image (GS v 0) command");
+			int w = (data[i+4] & 0xff) | (data[i+5] & 0xff) << 8;
+			int h = (data[i+6] & 0xff) | (data[i+7] & 0xff) << 8;
+			if (w == 0 || h == 0 || data.length - i - HEADER < w * h)
+				throw new IOException(path + " should have " + (HEADER + w * h) + " bytes for a " + w * 8 + "x" + h + " image but has " + (data.length - i));
+			if (width >= 0 && w != width)
+				throw new IOException(path + " has bands of different widths");
+			width = w;
+			mode = data[i+3];
+			bits.write(data, i + HEADER, w * h);
+			height += h;
+			i += HEADER + w * h;
+		}
+		return new Logo(bits.toByteArray(), width, height, mode, bandHeight, false);
+	}
+
+	public static Logo fromConfig(Config config) { //Load the logo set by logo.file - either a Logo.bin file or an image to convert (or no logo if it cannot be read)
+		String path = config.getString("logo.file", "Logo.bin");
+		int bandHeight = config.getInt("logo.bandHeight", 0);
+		try {
+			if (path.matches("(?i).*\\.(png|jpe?g|gif|bmp)")) {
+				RasterImage.Dither dither = RasterImage.Dither.valueOf(config.getString("logo.dither", "JJN").toUpperCase());
+				return RasterImage.convert(Files.readAllBytes(new File(path).toPath()), config.getInt("logo.width", RasterImage.PAPER_WIDTH), dither, bandHeight);
+			}
+			return load(path, bandHeight);
+		} catch (IOException | IllegalArgumentException e) {
+			Log.error("Logo", "Could not load " + path + ", printing without a logo. " + e.toString());
+			return EMPTY;
+		}
+	}
+
+	public void writeTo(ReceiptBuffer out) { //Add the logo to a receipt
+		if (stored) {
+			out.write(0x1c).write(0x70).write(0x01).write(mode); //FS p 1 m - print stored image 1 with the same scaling
+		} else {
+			out.write(command);
+		}
+	}
+
+	public byte[] storeCommand() { //FS q command that saves this logo as NV image 1 in the printer (column format, 8 dots per byte vertically)
+		int rows = (height + 7) / 8; //Height in groups of 8 dots
+		int columns = width * 8;
+		byte[] out = new byte[7 + columns * rows];
+		out[0] = 0x1c; out[1] = 0x71; out[2] = 0x01; //FS q 1
+		out[3] = (byte) (width % 256); out[4] = (byte) (width / 256);
+		out[5] = (byte) (rows % 256); out[6] = (byte) (rows / 256);
+		int i = 7;
+		for (int x=0; x<columns; x++) {
+			int mask = 0x80 >> (x % 8);
+			for (int r=0; r<rows; r++) {
+				int b = 0;
+				for (int bit=0; bit<8; bit++) {
+					int y = r * 8 + bit;
+					if (y < height && (bits[y * width + x / 8] & mask) != 0) b |= 0x80 >> bit;
+				}
+				out[i++] = (byte) b;
+			}
+		}
+		return out;
+	}
+
+	public Logo asStored() { //Same logo, printed from the printer's NV memory (see storeCommand)
+		return isEmpty() ? this : new Logo(bits, width, height, mode, 0, true);
+	}
+
+	public boolean isEmpty() {
+		return command.length == 0;
+	}
+
+	public byte[] toByteArray() { //The GS v 0 command(s) - the Logo.bin format
+		return command.clone();
+	}
+
+	public boolean canStore() { //Whether the image fits the NV image limits (1023 x 288 groups of 8 dots)
+		return !isEmpty() && width <= 1023 && (height + 7) / 8 <= 288;
+	}
+
+	public String hash() { //SHA-256 of the image - used to tell if a stored logo is out of date
+		return RasterImage.hash(new byte[]{(byte) width, (byte) (width >> 8), (byte) height, (byte) (height >> 8)}, bits);
+	}
+
+	public int getWidth() { //Width in dots
+		return width * 8;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
@@ -21,61 +21,181 @@ import java.util.*;
 import java.io.*;
 
 public class Main {
-	static Queue<Packet> print_queue;
-	static Printer printer;
+	static PrinterPool pool;
 	static Hardware hardware;
 	static Pin led;
+	static LedController leds;
+	static ReceiptCache receipts;
+	static DedupIndex dedup;
+	static Config config;
 
 	public static void main(String[] args) throws IOException {
-		PrinterServer server = new PrinterServer(); //Create the server
-		printer = new Printer(); //Create the printer
-		hardware = new Hardware();
+		config = new Config();
+		Log.configure(config); //Level and format of the log lines
+		PrinterServer server = new PrinterServer(config.getInt("server.port", 9321), config.getInt("server.maxConnections", 16), config.getInt("server.timeout", 1000), config.getInt("server.backlog", 128)); //Create the server
+		pool = PrinterPool.fromConfig(config, () -> {
+			leds.show(LedController.Pattern.PRINTING);
+			leds.setQueueDepth(pool.depth());
+		}); //Create the printers, each with its own print queue
+		Logo logo = Logo.fromConfig(config); //Read once and shared by every receipt
+		if (config.getString("logo.mode", "raster").equalsIgnoreCase("nv")) {
+			Logo stored = logo;
+			for (Printer printer: pool.getPrinters()) { //Every printer keeps its own copy
+				String marker = config.getString("logo.storedHash", "Logo.stored");
+				stored = printer.storeLogo(logo, pool.getPrinters().size() > 1 ? marker + "." + printer.getName() : marker);
+			}
+			logo = stored;
+		}
+		ReceiptRenderer.setLogo(logo);
+		ReceiptRenderer.setLayout(TextLayout.fromConfig(config)); //Paper width, font and character set
+		ReceiptRenderer.loadTemplates(config); //Compiled once, for that layout
+		hardware = Hardware.fromConfig(config);
 		led = new Pin(4, 1); //BCM 4, output
-		boolean stat = hardware.setup(led);
-		System.out.println(stat);
+		if (!hardware.setup(led)) Log.error("Main", "Could not set up the status LED (GPIO " + led.getNumber() + ")");
+
+		leds = LedController.fromConfig(hardware, led, config); //One thread drives the LED, however many flashes are asked for
+		leds.show(LedController.Pattern.READY);
+		for (Printer printer: pool.getPrinters()) { //Error flash while any printer is out of paper, open, etc. (with printer.status)
+			printer.setStatusListener(state -> leds.hold(LedController.Pattern.ERROR, pool.getPrinters().stream().anyMatch(Printer::isFaulted)));
+		}
 
-		hardware.readyLEDFlash(led);
+		Log.info("Main", "Server started. Waiting for print jobs...");
+		pool.start(); //Jobs are released by each printer's thread as soon as they arrive
+		String idFile = config.getString("job.idFile", "PrinterPi.jobid");
+		if (!idFile.isEmpty()) PrintJob.setIdFile(new File(idFile)); //Job numbers carry on from the last run, so a number kept by a client is never given to another job
+		receipts = ReceiptCache.fromConfig(config); //Printer data of recent jobs, for reprints
+		dedup = DedupIndex.fromConfig(config); //Recent requests, so retries are not printed twice
+		Journal journal = Journal.fromConfig(config); //Jobs still waiting when the server last stopped are printed first
+		if (journal != null) {
+			List<PrintJob> waiting = journal.open();
+			if (waiting.size() > 0) Log.info("Main", "Restoring " + waiting.size() + " print job(s) from the journal");
+			pool.setJournal(journal);
+			Runtime.getRuntime().addShutdownHook(new Thread(journal::close)); //Write what is waiting when the server is stopped
+			for (PrintJob job: waiting) receipts.put(job.id, job.data);
+			pool.restore(waiting);
+		}
 
-		System.out.println("-INFO- Server started. Waiting for print jobs...");
-		print_queue = new LinkedList<Packet>();
+		Metrics.gauge("printerpi_queue_depth", "Print jobs waiting in the print queues", pool::depth);
+		Metrics.gauge("printerpi_printers_faulted", "Printers reporting a fault, such as no paper (with printer.status)", () -> pool.getPrinters().stream().filter(Printer::isFaulted).count());
+		server.setMaxBatch(config.getInt("server.maxBatch", 256));
+		server.setKeepAlive(config.getInt("server.keepAlive", 5000), config.getInt("server.maxRequests", 100));
+		server.setMaxIdle(config.getInt("server.maxIdle", 64));
+		server.setStreaming(config.getBoolean("server.streaming", false));
+		int streamTimeout = config.getInt("server.streamTimeout", 30000);
+		server.listen(new PrinterServer.JobHandler() { //Main loop - adds print jobs to queue as each connection is parsed
+			public long submit(Packet res, String key) {
+				String k = dedup.keyOf(key, res);
+				long[] earlier = dedup.claim(k);
+				if (earlier != null) { //Repeated request (such as a retry after a timeout) - already queued
+					Log.info("Main", "Repeated print job ignored, already queued as job " + earlier[0]);
+					return earlier[0];
+				}
+				PrintJob job = null;
+				boolean queued = false;
+				try {
+					job = PrintJob.render(res); //Render on this connection thread
+					receipts.put(job.id, job.data);
+					queued = pool.submit(job); //Add job to a printer's queue - automatically released by its thread
+				} finally {
+					if (!queued) dedup.release(k); //Also when rendering fails, so retries are not left waiting for it
+				}
+				if (!queued) return -1;
+				dedup.done(k, new long[] {job.id});
+				queued();
+				return job.id;
+			}
 
-		Thread mng = new Thread() {
-			public void run() {
+			public long[] submitAll(List<Packet> packets, String key) {
+				String batchKey = key != null ? dedup.keyOf(key, null) : null; //With a key the batch is repeated as a whole, otherwise each packet is checked
+				long[] earlier = dedup.claim(batchKey);
+				if (earlier != null) {
+					Log.info("Main", "Repeated batch ignored, already queued");
+					return earlier;
+				}
+				long[] ids = new long[packets.size()];
+				String[] keys = new String[packets.size()];
+				List<PrintJob> jobs = new ArrayList<PrintJob>(packets.size());
+				Set<String> claimed = new HashSet<String>();
+				boolean queued = false;
 				try {
-					while (true) {
-						queueManager();
+					for (int i=0; i<ids.length; i++) {
+						Packet res = packets.get(i);
+						if (batchKey == null) {
+							keys[i] = dedup.keyOf(null, res);
+							if (!claimed.add(keys[i])) keys[i] = null; //Same packet twice in this batch - meant to be printed twice
+							earlier = dedup.claim(keys[i]);
+							if (earlier != null) { //This packet was already queued
+								ids[i] = earlier[0];
+								keys[i] = null;
+								continue;
+							}
+						}
+						PrintJob job = PrintJob.render(res);
+						receipts.put(job.id, job.data);
+						ids[i] = job.id;
+						jobs.add(job);
+					}
+					queued = jobs.isEmpty() || pool.submitAll(jobs);
+				} finally { //Every key claimed is settled, even when rendering fails
+					for (int i=0; i<ids.length; i++) {
+						if (queued) dedup.done(keys[i], new long[] {ids[i]});
+						else dedup.release(keys[i]);
 					}
-				} catch (InterruptedException e) {
+					if (queued) dedup.done(batchKey, ids);
+					else dedup.release(batchKey);
 				}
+				if (!queued) return null;
+				queued();
+				return ids;
 			}
-		}; //Start the print queue manager thread
-		mng.start();
 
-		while (true) { //Main loop - adds print jobs to queue
-			Packet res = server.getPacket();
-			if (res != null) {
-				System.out.println("-INFO- New print job - adding to queue. Current queue size: " + (print_queue.size() + 1));
-				print_queue.add(res); //Add job to print queue - automatically popped by queueManager() thread
-			} else {
-				System.out.println("-ERROR- Error recieving data from server. Please check the log file.");
-				hardware.errorLEDFlash(led);
+			public long reprint(long id) {
+				byte[] data = receipts.get(id);
+				if (data == null) return 0;
+				PrintJob job = PrintJob.reprint(data); //Sent as it is - no parsing or rendering
+				if (!pool.submit(job)) return -1;
+				queued();
+				return job.id;
 			}
-		}
-	}
 
-	public static void queueManager() throws InterruptedException { //Queue manager; releases one print job - designed to be run in infinite loop by a separate thread
-		if (print_queue.size() > 0) { //Run if more than one print job to be released
-			hardware.printingLEDFlash(led);
-			Packet job = print_queue.remove();
-			try {
-				System.out.println("-INFO- Releasing print job...");
-				printer.print(job);
-				Thread.sleep(1000); //Delay in between print jobs
-			} catch (IOException e) {
-				System.out.println("-ERROR- Error in releasing print job.");
+			public ReceiptStream stream(Packet res, String key) {
+				ReceiptTemplate.Stream parts = ReceiptRenderer.stream(res);
+				if (parts == null) return null; //Its template needs the whole packet first
+				String k = key != null ? dedup.keyOf(key, null) : null; //Only the key can be checked - the contents are not all known yet
+				if (dedup.claim(k) != null) return null; //Repeated - read it whole, and it is answered with the earlier job
+				PrintJob job = null;
+				boolean queued = false;
+				try {
+					job = PrintJob.stream(res, new ReceiptStream(parts, streamTimeout));
+					queued = pool.submit(job);
+				} finally {
+					if (!queued) dedup.release(k);
+				}
+				if (!queued) return null;
+				queued();
+				return job.stream;
 			}
-			System.out.println("-INFO- Print job complete. Current print queue size: " + (print_queue.size() + 1));
-		}
-		Thread.sleep(100); //Only need to check every second
+
+			public void streamed(ReceiptStream stream, String key, boolean printed) {
+				String k = key != null ? dedup.keyOf(key, null) : null;
+				if (!printed) {
+					dedup.release(k); //A retry is printed again
+					return;
+				}
+				receipts.put(stream.id, stream.data());
+				dedup.done(k, new long[] {stream.id});
+			}
+
+			public void error() {
+				Log.error("Main", "Error recieving data from server. Please check the log file.");
+				leds.show(LedController.Pattern.ERROR);
+			}
+
+			private void queued() {
+				int depth = pool.depth();
+				Log.info("Main", "New print job added to queue. Current queue size: " + depth);
+				leds.setQueueDepth(depth);
+			}
+		});
 	}
 }
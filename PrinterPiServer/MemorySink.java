@@ -0,0 +1,102 @@
+/*
+ *    MemorySink.java - Printer output kept in memory, for running the server without a printer (load tests, comparing receipts byte for byte)
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MemorySink extends OutputStream implements OutputSink {
+	/*
+		Sinks are found by name (memory:<name>), so whoever runs the server in the same JVM can read what each printer was sent with
+		MemorySink.get(name).take(). Data beyond <limit> bytes (since the last take) is counted but not kept, so a long load test does
+		not run out of memory.
+	*/
+	private static final Map<String, MemorySink> sinks = new HashMap<String, MemorySink>();
+
+	private byte[] data = new byte[4096];
+	private int size; //Bytes kept in data
+	private long written; //Bytes written in all
+	private int limit;
+
+	public MemorySink(int limit) {
+		this.limit = limit;
+	}
+
+	public static MemorySink get(String name, int limit) { //The sink called <name>, created with room for <limit> bytes if there is none yet
+		synchronized (sinks) {
+			MemorySink sink = sinks.get(name);
+			if (sink == null) {
+				sink = new MemorySink(limit);
+				sinks.put(name, sink);
+			}
+			return sink;
+		}
+	}
+
+	public static MemorySink get(String name) { //The sink called <name>, or null if there is none
+		synchronized (sinks) {
+			return sinks.get(name);
+		}
+	}
+
+	public synchronized void write(int b) {
+		written++;
+		if (size == limit) return;
+		if (size == data.length) grow(size + 1);
+		data[size++] = (byte) b;
+	}
+
+	public synchronized void write(byte[] b, int off, int len) {
+		written += len;
+		len = Math.min(len, limit - size);
+		if (size + len > data.length) grow(size + len);
+		System.arraycopy(b, off, data, size, len);
+		size += len;
+	}
+
+	private void grow(int needed) {
+		data = Arrays.copyOf(data, Math.min(Math.max(needed, data.length * 2), limit));
+	}
+
+	public synchronized byte[] take() { //Everything kept since the last take
+		byte[] taken = Arrays.copyOf(data, size);
+		size = 0;
+		return taken;
+	}
+
+	public synchronized long written() { //Bytes written since the sink was created (including any not kept)
+		return written;
+	}
+
+	public OutputStream output() {
+		return this;
+	}
+
+	public InputStream input() { //Nothing answers
+		return null;
+	}
+
+	public boolean flowControlled() { //Paced like a printer, so load tests run at a realistic rate (unless serial.flowControl is set)
+		return false;
+	}
+
+	public void close() {} //Kept for reading after the printer is closed
+}
@@ -0,0 +1,141 @@
+/*
+ *    Metrics.java - Counters and timing histograms of the request and print paths, served in the Prometheus text format on GET /metrics
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+	/*
+		Every metric is created once (below, or as a gauge at startup), so counting only adds to a LongAdder: no locks, no objects, and
+		threads counting at the same time do not slow each other down. A histogram keeps one adder per bucket and adds them up (into the
+		cumulative buckets Prometheus expects) only when scraped. Times are measured with System.nanoTime and reported in seconds.
+	*/
+	private static final List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+	private static final String[] SECONDS = {"0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30", "60", "300"}; //Bucket bounds of timings, as written in the le labels
+
+	public static final Counter REQUESTS = new Counter("printerpi_requests_total", "HTTP requests received");
+	public static final Counter BAD_REQUESTS = new Counter("printerpi_parse_errors_total", "Requests that could not be read or were incomplete");
+	public static final Counter JOBS_QUEUED = new Counter("printerpi_jobs_queued_total", "Print jobs added to a print queue");
+	public static final Counter JOBS_REJECTED = new Counter("printerpi_jobs_rejected_total", "Requests refused because the print queue was full");
+	public static final Counter JOBS_PRINTED = new Counter("printerpi_jobs_printed_total", "Print jobs sent to a printer");
+	public static final Counter PRINT_ERRORS = new Counter("printerpi_print_errors_total", "Print jobs that failed while being sent to a printer");
+	public static final Counter BYTES_SENT = new Counter("printerpi_transmitted_bytes_total", "Bytes sent to the printers");
+	public static final Counter LOG_DROPPED = new Counter("printerpi_log_dropped_total", "Log lines dropped because the log could not keep up");
+	public static final Histogram ACCEPT_TO_QUEUE = new Histogram("printerpi_accept_to_queue_seconds", "Time from accepting a request (or reading the request line, on a kept open connection) to its job(s) being queued");
+	public static final Histogram QUEUE_WAIT = new Histogram("printerpi_queue_wait_seconds", "Time print jobs waited in the print queue");
+	public static final Histogram RENDER = new Histogram("printerpi_render_seconds", "Time to render each receipt");
+	public static final Histogram PRINT = new Histogram("printerpi_print_seconds", "Time to send each print job to the printer (and, with printer.status, for it to be printed)");
+
+	public abstract static class Metric {
+		String name;
+		String help;
+
+		Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+			metrics.add(this);
+		}
+
+		abstract void write(StringBuilder out);
+	}
+
+	public static class Counter extends Metric {
+		private LongAdder count = new LongAdder();
+
+		Counter(String name, String help) {
+			super(name, help);
+		}
+
+		public void inc() {
+			count.increment();
+		}
+
+		public void add(long n) {
+			count.add(n);
+		}
+
+		public long get() {
+			return count.sum();
+		}
+
+		void write(StringBuilder out) {
+			out.append("# TYPE ").append(name).append(" counter\n");
+			out.append(name).append(' ').append(get()).append('\n');
+		}
+	}
+
+	public static class Histogram extends Metric {
+		private long[] bounds = new long[SECONDS.length]; //Upper bound of each bucket (ns)
+		private LongAdder[] buckets = new LongAdder[SECONDS.length + 1]; //Observations in each bucket (not cumulative), the last for larger ones
+		private LongAdder sum = new LongAdder(); //ns
+
+		Histogram(String name, String help) {
+			super(name, help);
+			for (int i=0; i<bounds.length; i++) bounds[i] = (long) (Double.parseDouble(SECONDS[i]) * 1e9);
+			for (int i=0; i<buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		public void observe(long nanos) { //Record one time (ns)
+			int i = 0;
+			while (i < bounds.length && nanos > bounds[i]) i++;
+			buckets[i].increment();
+			sum.add(nanos);
+		}
+
+		void write(StringBuilder out) {
+			out.append("# TYPE ").append(name).append(" histogram\n");
+			long count = 0;
+			for (int i=0; i<buckets.length; i++) {
+				count += buckets[i].sum();
+				out.append(name).append("_bucket{le=\"").append(i < SECONDS.length ? SECONDS[i] : "+Inf").append("\"} ").append(count).append('\n');
+			}
+			out.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+			out.append(name).append("_count ").append(count).append('\n');
+		}
+	}
+
+	private static class Gauge extends Metric {
+		private LongSupplier value;
+
+		Gauge(String name, String help, LongSupplier value) {
+			super(name, help);
+			this.value = value;
+		}
+
+		void write(StringBuilder out) {
+			out.append("# TYPE ").append(name).append(" gauge\n");
+			out.append(name).append(' ').append(value.getAsLong()).append('\n');
+		}
+	}
+
+	public static void gauge(String name, String help, LongSupplier value) { //Report <value> (read when scraped) as <name>
+		new Gauge(name, help, value);
+	}
+
+	public static String scrape() { //All metrics in the Prometheus text format (version 0.0.4)
+		StringBuilder out = new StringBuilder(4096);
+		for (Metric m: metrics) {
+			out.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+			m.write(out);
+		}
+		return out.toString();
+	}
+}
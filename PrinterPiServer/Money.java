@@ -0,0 +1,60 @@
+/*
+ *    Money.java - Helpers for amounts of money held as a whole number of cents (long), so totals add up exactly
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public final class Money {
+	private Money() {}
+
+	public static long cents(double value) { //Nearest whole number of cents to <value> (in dollars)
+		return Math.round(value * 100);
+	}
+
+	public static long divide(long cents, int n) { //<cents> split <n> ways, rounded half away from zero (such as a unit price from a line price)
+		if (n == 0) return cents;
+		long q = (Math.abs(cents) * 2 + Math.abs(n)) / (2L * Math.abs(n));
+		return (cents < 0) != (n < 0) ? -q : q;
+	}
+
+	public static int write(ReceiptBuffer out, long cents) { //Write <cents> as dollars with two decimal places (such as 12.34) without creating any objects - returns the number of characters written
+		int n = 3; //Point and two decimal places
+		if (cents < 0) {
+			out.write('-');
+			n++;
+		}
+		long whole = Math.abs(cents / 100);
+		int frac = (int) Math.abs(cents % 100);
+		long div = 1;
+		while (div <= whole / 10) div *= 10;
+		for (; div > 0; div /= 10) {
+			out.write((int) ('0' + whole / div % 10));
+			n++;
+		}
+		out.write('.');
+		out.write('0' + frac / 10);
+		out.write('0' + frac % 10);
+		return n;
+	}
+
+	public static String toString(long cents) { //<cents> as dollars with two decimal places (such as 12.34)
+		ReceiptBuffer buf = new ReceiptBuffer(24);
+		write(buf, cents);
+		return new String(buf.toByteArray(), StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ *    OutputSink.java - Where a printer's data goes: a serial/USB device, pty, file, network printer or memory (chosen by printer.device)
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface OutputSink extends Closeable {
+	/*
+		printer.device is a path or <kind>:<where>:
+
+		/dev/serial0, serial:/dev/serial0    Serial or USB device (DeviceSink)
+		pty:/dev/pts/3                       Pseudo terminal, such as one end of `socat -d -d pty,raw,echo=0 pty,raw,echo=0` (DeviceSink)
+		file:/tmp/receipts.bin               Regular file, emptied when opened (DeviceSink)
+		tcp://host[:port]                    Network printer on its raw port, 9100 if left out (TcpSink)
+		memory:name                          Kept in memory, up to printer.captureSize bytes, to be read back with MemorySink.get (MemorySink)
+
+		Everything but memory and file can be read from too, for the printer's status (printer.status).
+	*/
+	OutputStream output(); //Printer data is written here
+
+	InputStream input(); //Replies from the printer, or null if it cannot be read from
+
+	boolean flowControlled(); //The connection holds back writes itself, so the Transmitter need not pace them
+
+	static OutputSink fromConfig(Config config) throws IOException { //Open the sink set by the (scoped) printer.device, printer.status, printer.captureSize and printer.connectTimeout settings
+		String device = config.getString("printer.device", "/dev/serial0");
+		boolean read = config.getBoolean("printer.status", false);
+		int colon = device.indexOf(':');
+		String kind = colon < 0 ? "" : device.substring(0, colon);
+		String where = device.substring(colon + 1);
+		switch (kind) {
+			case "serial":
+			case "pty":
+				return new DeviceSink(where, read);
+			case "file":
+				return new DeviceSink(where, false);
+			case "tcp":
+				return new TcpSink(where.startsWith("//") ? where.substring(2) : where, read, config.getInt("printer.connectTimeout", 3000));
+			case "memory":
+				return MemorySink.get(where, config.getInt("printer.captureSize", 16777216));
+			default: //A plain path
+				return new DeviceSink(device, read);
+		}
+	}
+}
@@ -18,21 +18,30 @@
  */
 
 import java.util.Set;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Arrays;
 
 public class Packet {
 	public String[] to; //Address stored in separate lines
 	public String[] from;
-	public double subtotal;
-	public double shipping;
-	public double tax;
-	public double total;
+	public long subtotal; //Amounts are in cents
+	public long shipping;
+	public long tax;
+	public long total;
 	public Set<Item> items;
 	public String[] messages;
+	public String printer; //Name of the printer to use (null for any)
+	public int priority; //Higher prints first (LOW, NORMAL, HIGH, EXPRESS or any other number)
+	public long deadline; //Time the receipt should be printed by (ms since 1970, 0 for none)
+	public String template; //Name of the receipt template to use (null for the default)
+
+	public static final int LOW = -1; //Priority classes
+	public static final int NORMAL = 0;
+	public static final int HIGH = 1;
+	public static final int EXPRESS = 2;
 
 	public Packet() {
-		this.items = new HashSet<Item>();
+		this.items = new LinkedHashSet<Item>(); //Kept in the order they were sent
 	}
 
 	public boolean isComplete() { //Check if the packet is complete
@@ -40,6 +49,6 @@ public class Packet {
 	}
 
 	public String toString() {
-		return "From: " + Arrays.toString(this.from) +  "\nTo: " + Arrays.toString(this.to) + "\nSubtotal: " + this.subtotal + "\nShipping: " + this.shipping + "\nTotal: " + this.total + "\nItems: " + items;
+		return "From: " + Arrays.toString(this.from) +  "\nTo: " + Arrays.toString(this.to) + "\nSubtotal: " + Money.toString(this.subtotal) + "\nShipping: " + Money.toString(this.shipping) + "\nTotal: " + Money.toString(this.total) + "\nItems: " + items;
 	}
 }
@@ -0,0 +1,201 @@
+/*
+ *    PacketCodec.java - Compact binary encoding of a Packet (varints, length prefixed UTF-8 strings and prices in cents)
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PacketCodec {
+	/*
+		Format (version 3):
+
+		version      byte (1)
+		to, from     string list
+		subtotal     money
+		shipping     money
+		tax          money
+		items        varint count, then for each: desc string, sku string, qty varint, price money
+		messages     string list
+		printer      string (optional)
+		priority     zigzag varint (version 2)
+		deadline     varint, ms since 1970 or 0 (version 2)
+		template     string (version 3)
+
+		varint: 7 bits per byte, lowest first, high bit set on all but the last byte
+		money: cents as a zigzag varint (so negative values stay short)
+		string: varint length + 1 (0 for none), then the UTF-8 bytes
+		string list: varint count + 1 (0 for none), then each string
+
+		Several packets (such as a batch request) are sent as a varint length before each encoded packet.
+	*/
+	public static final int VERSION = 3; //Versions 1 (without priority and deadline) and 2 (without template) can still be read
+	public static final String CONTENT_TYPE = "application/x-printerpi"; //Content-Type of requests in this format
+
+	public static byte[] encode(Packet pkt) { //Encode <pkt> into the binary format
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		out.write(VERSION);
+		writeStrings(out, pkt.to);
+		writeStrings(out, pkt.from);
+		writeMoney(out, pkt.subtotal);
+		writeMoney(out, pkt.shipping);
+		writeMoney(out, pkt.tax);
+		writeVarint(out, pkt.items.size());
+		for (Item item: pkt.items) {
+			writeString(out, item.desc);
+			writeString(out, item.sku);
+			writeVarint(out, item.qty);
+			writeMoney(out, item.price);
+		}
+		writeStrings(out, pkt.messages);
+		writeString(out, pkt.printer);
+		writeVarint(out, ((long) pkt.priority << 1) ^ (pkt.priority >> 31)); //Zigzag
+		writeVarint(out, pkt.deadline);
+		writeString(out, pkt.template);
+		return out.toByteArray();
+	}
+
+	public static Packet decode(byte[] data, int off, int len) throws IOException { //Decode a Packet from <len> bytes of <data> at <off>
+		Reader in = new Reader(data, off, off + len);
+		int version = in.readByte();
+		if (version < 1 || version > VERSION)
+			throw new IOException("Unsupported packet format version " + version);
+		Packet pkt = new Packet();
+		pkt.to = in.readStrings();
+		pkt.from = in.readStrings();
+		pkt.subtotal = in.readMoney();
+		pkt.shipping = in.readMoney();
+		pkt.tax = in.readMoney();
+		long count = in.readVarint();
+		for (long i=0; i<count; i++) {
+			String desc = in.readString();
+			String sku = in.readString();
+			long qty = in.readVarint();
+			if (qty < 1 || qty > Integer.MAX_VALUE) throw new IOException("Invalid quantity: " + qty);
+			pkt.items.add(new Item(desc, sku, (int) qty, in.readMoney()));
+		}
+		pkt.messages = in.readStrings();
+		pkt.printer = in.readString();
+		if (version >= 2) {
+			long z = in.readVarint();
+			pkt.priority = (int) ((z >>> 1) ^ -(z & 1));
+			pkt.deadline = in.readVarint();
+		}
+		if (version >= 3) pkt.template = in.readString();
+		if (in.pos != in.end) throw new IOException("Unexpected data after the packet");
+		pkt.total = pkt.shipping + pkt.subtotal + pkt.tax;
+		return pkt;
+	}
+
+	public static List<Packet> decodeAll(byte[] data, int off, int len) throws IOException { //Decode packets each preceded by their length
+		List<Packet> packets = new ArrayList<Packet>();
+		Reader in = new Reader(data, off, off + len);
+		while (in.pos < in.end) {
+			long size = in.readVarint();
+			if (size > in.end - in.pos) throw new IOException("Packet data ended early");
+			packets.add(decode(data, in.pos, (int) size));
+			in.pos += size;
+		}
+		return packets;
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static void writeMoney(ByteArrayOutputStream out, long cents) {
+		writeVarint(out, (cents << 1) ^ (cents >> 63)); //Zigzag
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		if (s == null) {
+			out.write(0);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, b.length + 1L);
+		out.write(b, 0, b.length);
+	}
+
+	private static void writeStrings(ByteArrayOutputStream out, String[] list) {
+		if (list == null) {
+			out.write(0);
+			return;
+		}
+		writeVarint(out, list.length + 1L);
+		for (String s: list) writeString(out, s);
+	}
+
+	static class Reader { //Reads the binary format from a byte array
+		private byte[] data;
+		private int pos;
+		private int end;
+
+		Reader(byte[] data, int off, int end) {
+			this.data = data;
+			this.pos = off;
+			this.end = end;
+		}
+
+		int readByte() throws IOException {
+			if (pos >= end) throw new IOException("Packet data ended early");
+			return data[pos++] & 0xff;
+		}
+
+		long readVarint() throws IOException {
+			long value = 0;
+			for (int shift=0; shift<64; shift+=7) {
+				int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+			throw new IOException("Invalid varint");
+		}
+
+		long readMoney() throws IOException {
+			long z = readVarint();
+			return (z >>> 1) ^ -(z & 1);
+		}
+
+		String readString() throws IOException {
+			long len = readVarint();
+			if (len == 0) return null;
+			len--;
+			if (len > end - pos) throw new IOException("Packet data ended early");
+			String s = new String(data, pos, (int) len, StandardCharsets.UTF_8);
+			pos += len;
+			return s;
+		}
+
+		String[] readStrings() throws IOException {
+			long count = readVarint();
+			if (count == 0) return null;
+			count--;
+			if (count > end - pos) throw new IOException("Packet data ended early");
+			String[] list = new String[(int) count];
+			for (int i=0; i<list.length; i++) list[i] = readString();
+			return list;
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ *    PacketParser.java - Single pass parser that reads the request lines and the "Key: value" body straight from the socket bytes into a Packet
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+public class PacketParser {
+	private static final int END = '`'; //End of transmission marker
+	public static final int MAX_LINE = 65536; //Longest line read (bytes), so one endless line cannot use up the memory
+
+	private InputStream in;
+	private byte[] line; //Current line - reused for every line and only grown for longer lines
+	private int len; //Number of bytes in line
+	private int remaining; //Body bytes still allowed to be read (from Content-Length)
+	private boolean done; //End of the body reached
+	private boolean ended; //End of the current packet reached (` marker)
+	private BiConsumer<Packet, Item> onItem; //Told about each item as soon as its line is read (null for none)
+	private boolean overflowed; //A line longer than MAX_LINE was found - the rest of it has not been read
+
+	public PacketParser(InputStream in) { //<in> should be buffered as it is read one byte at a time
+		this.in = in;
+		this.line = new byte[256];
+	}
+
+	public void setItemListener(BiConsumer<Packet, Item> onItem) { //Call <onItem> with the packet so far and the item, as each Item: line is read (before the rest of the packet)
+		this.onItem = onItem;
+	}
+
+	public String readLine() throws IOException { //Read one header line (without the CR LF), or null if the stream has ended
+		len = 0;
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			append(b);
+		}
+		if (b == -1 && len == 0) return null;
+		trimCR();
+		return new String(line, 0, len, StandardCharsets.ISO_8859_1);
+	}
+
+	public Packet parse(int length) throws IOException { //Read a body of at most <length> bytes (ending early at the ` marker) and return it as a Packet
+		begin(length);
+		Packet pkt = next();
+		return pkt != null ? pkt : new Packet(); //Empty body
+	}
+
+	public void begin(int length) { //Start reading a body of at most <length> bytes, to be read with next()
+		remaining = length;
+		done = false;
+	}
+
+	public Packet next() throws IOException { //Read the next packet of the body (each ends at a ` marker), or null once the body has ended
+		while (!done) {
+			ended = false;
+			Packet pkt = null;
+			while (nextLine()) {
+				if (len == 0) continue; //Blank lines are ignored
+				if (pkt == null) pkt = new Packet();
+				field(pkt);
+			}
+			if (pkt != null) {
+				pkt.total = pkt.shipping + pkt.subtotal + pkt.tax; //Computed once all of the fields are read
+				return pkt;
+			}
+		}
+		return null;
+	}
+
+	private boolean nextLine() throws IOException { //Read the next line of the current packet into the buffer, returning false once the packet or the body has ended
+		len = 0;
+		if (done || ended) return false;
+		while (remaining > 0) {
+			int b = in.read();
+			if (b == -1) { //Client stopped sending - treat as the end of the body
+				remaining = 0;
+				break;
+			}
+			remaining--;
+			if (b == END) {
+				ended = true;
+				trimCR();
+				return len > 0; //Last line may not have a newline
+			}
+			if (b == '\n') {
+				trimCR();
+				return true;
+			}
+			append(b);
+		}
+		done = true;
+		trimCR();
+		return len > 0; //Last line may not have a newline
+	}
+
+	private void field(Packet pkt) { //Parse the current line ("Key: value") into <pkt>
+		int colon = indexOf(':', 0, len);
+		if (colon < 0)
+			throw new IllegalArgumentException("Missing ':' in line: " + text(0, len));
+		int start = colon + 1;
+		if (start < len && line[start] == ' ') start++; //Skip the space after the colon
+
+		if (isKey("to", colon)) {
+			pkt.to = split(start, len, "/n/");
+		} else if (isKey("from", colon)) {
+			pkt.from = split(start, len, "/n/");
+		} else if (isKey("subtotal", colon)) {
+			pkt.subtotal = parseMoney(start, len);
+		} else if (isKey("shipping", colon)) {
+			pkt.shipping = parseMoney(start, len);
+		} else if (isKey("tax", colon)) {
+			pkt.tax = parseMoney(start, len);
+		} else if (isKey("item", colon)) { //Item: desc~sku~qty~$price
+			int t1 = indexOf('~', start, len);
+			int t2 = t1 < 0 ? -1 : indexOf('~', t1+1, len);
+			int t3 = t2 < 0 ? -1 : indexOf('~', t2+1, len);
+			if (t3 < 0)
+				throw new IllegalArgumentException("Item must have a description, SKU, quantity and price: " + text(start, len));
+			int qty = parseInt(t2+1, t3);
+			if (qty < 1) throw new NumberFormatException("Invalid quantity: " + qty);
+			Item item = new Item(text(start, t1), text(t1+1, t2), qty, parseMoney(t3+1, len));
+			pkt.items.add(item);
+			if (onItem != null) onItem.accept(pkt, item);
+		} else if (isKey("message", colon)) {
+			pkt.messages = split(start, len, "~");
+		} else if (isKey("printer", colon)) {
+			pkt.printer = text(start, len).trim();
+		} else if (isKey("template", colon)) { //Template: name of a receipt template set in the templates setting
+			pkt.template = text(start, len).trim();
+		} else if (isKey("priority", colon)) { //Priority: express, high, normal, low or a number
+			pkt.priority = parsePriority(text(start, len).trim());
+		} else if (isKey("deadline", colon)) { //Deadline: ms since 1970, or a time such as 2020-11-20T15:30:00Z
+			String deadline = text(start, len).trim();
+			try {
+				pkt.deadline = Long.parseLong(deadline);
+			} catch (NumberFormatException e) {
+				try {
+					pkt.deadline = Instant.parse(deadline).toEpochMilli();
+				} catch (DateTimeParseException de) {
+					throw new IllegalArgumentException("Invalid deadline: " + deadline);
+				}
+			}
+		} else {
+			Log.debug("PacketParser", "Unrecognized parameter: " + text(0, colon).toLowerCase());
+		}
+	}
+
+	private static int parsePriority(String value) {
+		switch (value.toLowerCase()) {
+			case "express":
+				return Packet.EXPRESS;
+			case "high":
+				return Packet.HIGH;
+			case "normal":
+				return Packet.NORMAL;
+			case "low":
+				return Packet.LOW;
+			default:
+				try {
+					return Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid priority: " + value);
+				}
+		}
+	}
+
+	private boolean isKey(String key, int keyLen) { //Case insensitive compare of the key in the buffer (0 to keyLen) with <key> (lower case)
+		if (keyLen != key.length()) return false;
+		for (int i=0; i<keyLen; i++) {
+			int c = line[i];
+			if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+			if (c != key.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private String[] split(int from, int to, String sep) { //Split the buffer range on <sep> (same results as String.split, including dropping trailing empty parts)
+		int sepLen = sep.length();
+		int count = 1;
+		for (int i=from; (i = indexOf(sep, i, to)) >= 0; i += sepLen) count++;
+		String[] parts = new String[count];
+		int p = 0;
+		for (int i=from, next; p<count; i = next + sepLen) {
+			next = indexOf(sep, i, to);
+			if (next < 0) next = to;
+			parts[p++] = text(i, next);
+		}
+		while (count > 1 && parts[count-1].isEmpty()) count--;
+		return count == parts.length ? parts : Arrays.copyOf(parts, count);
+	}
+
+	private int parseInt(int from, int to) { //Parse a whole number (0 to Integer.MAX_VALUE) from the buffer range
+		int i = skipSpaces(from, to);
+		to = trimSpaces(i, to);
+		if (i >= to) throw new NumberFormatException("Empty number");
+		int value = 0;
+		for (; i<to; i++) {
+			int d = line[i] - '0';
+			if (d < 0 || d > 9) throw new NumberFormatException("Invalid number: " + text(from, to));
+			if (value > (Integer.MAX_VALUE - d) / 10) throw new NumberFormatException("Number too large: " + text(from, to));
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	private long parseMoney(int from, int to) { //Parse a currency value such as $12.34 (the $ is optional) from the buffer range, in cents (rounded to the nearest cent)
+		int i = skipSpaces(from, to);
+		to = trimSpaces(i, to);
+		if (i < to && line[i] == '$') i++;
+		boolean negative = i < to && line[i] == '-';
+		if (negative) i++;
+		long digits = 0;
+		int scale = -1; //Digits after the decimal point (-1 until the point is seen)
+		int count = 0;
+		for (int j=i; j<to; j++) {
+			int c = line[j];
+			if (c == '.' && scale < 0) {
+				scale = 0;
+			} else if (c >= '0' && c <= '9' && count < 16) {
+				digits = digits * 10 + (c - '0');
+				count++;
+				if (scale >= 0) scale++;
+			} else { //Anything unusual (exponents, very long numbers) - fall back to the full parser
+				return Money.cents(Double.parseDouble(text(from, to).replace("$", "")));
+			}
+		}
+		if (count == 0) throw new NumberFormatException("Invalid currency value: " + text(from, to));
+		long cents;
+		if (scale <= 0) {
+			cents = digits * 100;
+		} else if (scale <= 2) {
+			cents = scale == 1 ? digits * 10 : digits;
+		} else { //More than two decimal places - round half up
+			long div = 1;
+			for (int k=2; k<scale; k++) div *= 10;
+			cents = (digits + div / 2) / div;
+		}
+		return negative ? -cents : cents;
+	}
+
+	private int skipSpaces(int from, int to) {
+		while (from < to && line[from] == ' ') from++;
+		return from;
+	}
+
+	private int trimSpaces(int from, int to) {
+		while (to > from && line[to-1] == ' ') to--;
+		return to;
+	}
+
+	private int indexOf(int b, int from, int to) { //Index of byte <b> in the buffer range, or -1
+		for (int i=from; i<to; i++) {
+			if (line[i] == b) return i;
+		}
+		return -1;
+	}
+
+	private int indexOf(String s, int from, int to) { //Index of the ASCII string <s> in the buffer range, or -1
+		int n = s.length();
+		outer:
+		for (int i=from; i<=to-n; i++) {
+			for (int j=0; j<n; j++) {
+				if (line[i+j] != s.charAt(j)) continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private String text(int from, int to) { //Decode the buffer range as UTF-8
+		return new String(line, from, to - from, StandardCharsets.UTF_8);
+	}
+
+	public boolean overflowed() { //Reading stopped partway through a line that was too long
+		return overflowed;
+	}
+
+	private void append(int b) { //Add <b> to the line - throws IllegalArgumentException if the line is too long
+		if (len == MAX_LINE) {
+			overflowed = true;
+			throw new IllegalArgumentException("Line longer than " + MAX_LINE + " bytes");
+		}
+		if (len == line.length) line = Arrays.copyOf(line, Math.min(len * 2, MAX_LINE));
+		line[len++] = (byte) b;
+	}
+
+	private void trimCR() {
+		if (len > 0 && line[len-1] == '\r') len--;
+	}
+}
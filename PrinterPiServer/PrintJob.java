@@ -0,0 +1,111 @@
+/*
+ *    PrintJob.java - Data structure to hold one queued print job: the Packet and its rendered printer data
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PrintJob {
+	/*
+		Job numbers are never handed out twice, even across restarts, as clients keep them for reprints. The ID file holds a number
+		no job has reached yet; it is moved on RESERVE at a time, before any number past it is used, so it is written once every
+		RESERVE jobs. After a restart (or a crash) numbering carries on from the number in the file, skipping the rest of the block.
+	*/
+	private static final int RESERVE = 1000; //Job numbers reserved at a time
+	private static final AtomicLong lastId = new AtomicLong();
+	private static File idFile; //Holds the highest number reserved (null if numbers start again at every restart)
+	private static volatile long reserved = Long.MAX_VALUE; //Numbers up to this can be used without writing the ID file
+
+	public long id; //Unique job number (kept across restarts by the ID file and the journal)
+	public Packet packet; //null for a reprint
+	public byte[] data; //ESC/POS data ready to send to the printer (null for a streamed job)
+	public ReceiptStream stream; //Parts of a receipt still being received (null unless streamed)
+	public int priority; //Copied from the packet (see JobQueue for the order jobs print in)
+	public long deadline;
+	public long queued; //When the job was added to a print queue (System.nanoTime)
+
+	public PrintJob(long id, Packet packet, byte[] data) {
+		this.id = id;
+		this.packet = packet;
+		this.data = data;
+		if (packet != null) {
+			this.priority = packet.priority;
+			this.deadline = packet.deadline;
+		}
+	}
+
+	public static PrintJob render(Packet packet) { //Create a new job, rendering <packet> on the calling thread
+		return new PrintJob(nextId(), packet, draw(packet));
+	}
+
+	public static PrintJob stream(Packet packet, ReceiptStream stream) { //Create a new job printing <stream> as its parts are added (<packet> is still being read)
+		PrintJob job = new PrintJob(nextId(), packet, null);
+		job.stream = stream;
+		stream.id = job.id;
+		return job;
+	}
+
+	public static PrintJob reprint(byte[] data) { //Create a new job printing <data> (already rendered) again
+		return new PrintJob(nextId(), null, data);
+	}
+
+	public static PrintJob restore(long id, Packet packet) { //Recreate a job read back from the journal (new jobs are numbered after it)
+		lastId.accumulateAndGet(id, Math::max);
+		return new PrintJob(id, packet, draw(packet));
+	}
+
+	public static synchronized void setIdFile(File file) { //Carry on numbering jobs from the number saved in <file>, and keep it up to date
+		try {
+			if (file.exists()) lastId.accumulateAndGet(Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim()), Math::max);
+		} catch (IOException | NumberFormatException e) {
+			Log.error("PrintJob", "Could not read the last job number from " + file + ", numbering from " + (lastId.get() + 1) + ". " + e.toString());
+		}
+		idFile = file;
+		reserved = lastId.get(); //The next job reserves a new block
+	}
+
+	private static long nextId() {
+		long id = lastId.incrementAndGet();
+		if (id > reserved) reserve(id);
+		return id;
+	}
+
+	private static synchronized void reserve(long id) { //Save a new highest number in the ID file, past <id>
+		if (id <= reserved) return; //Another thread did already
+		long upTo = id + RESERVE;
+		File temp = new File(idFile.getPath() + ".tmp");
+		try {
+			Files.write(temp.toPath(), Long.toString(upTo).getBytes(StandardCharsets.UTF_8));
+			Files.move(temp.toPath(), idFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.error("PrintJob", "Could not save the job number to " + idFile + ", numbers may be used again after a restart. " + e.toString());
+		}
+		reserved = upTo;
+	}
+
+	private static byte[] draw(Packet packet) { //Render <packet>, timing it
+		long start = System.nanoTime();
+		byte[] data = ReceiptRenderer.render(packet);
+		Metrics.RENDER.observe(System.nanoTime() - start);
+		return data;
+	}
+}
@@ -18,185 +18,115 @@
  */
 
 import java.io.*;
+import java.util.function.Consumer;
 
 public class Printer {
-	static FileOutputStream fp;
+	private String name;
+	private OutputSink sink;
+	private Transmitter transmitter;
+	private StatusMonitor monitor; //null if the status is not read
 
-	public Printer() throws IOException {
-		fp = new FileOutputStream("/dev/serial0");
+	public Printer(String name, Config config) throws IOException { //Open the printer set up by the (scoped) printer.* settings
+		this(name, OutputSink.fromConfig(config), config);
 	}
 
-	private static void printLogo() throws IOException { //Print the logo
-		//Read the logo into an array
-		FileInputStream fin = new FileInputStream("Logo.bin");
-		byte[] bs = new byte[fin.available()];
-		fin.read(bs);
-		fin.close();
-
-		//Write the data
-		for (int i=0; i<bs.length; i++) { //Write overflow
-			fp.write(bs[i]);
-		}
-		cr();
-		newline();
-	}
-
-
-	public static void justify(int set) { //Set the justification
-		switch (set) {
-			case 0:
-				write(new byte[]{0x1b, 0x61, 0x00}); //Left justify
-				break;
-			case 1:
-				write(new byte[]{0x1b, 0x61, 0x01}); //Centered
-				break;
-			case 2:
-				write(new byte[]{0x1b, 0x61, 0x02}); //Right justify
-				break;
-			default:
-				write(new byte[]{0x1b, 0x61, 0x01}); //Centered
+	public Printer(String name, OutputSink sink, Config config) { //Print to <sink>, paced and monitored as set by the (scoped) printer.* and serial.* settings
+		this.name = name;
+		this.sink = sink;
+		transmitter = Transmitter.fromConfig(sink.output(), config, sink.flowControlled());
+		if (config.getBoolean("printer.status", false)) {
+			InputStream in = sink.input();
+			if (in == null) {
+				Log.error("Printer", "The status of " + name + " cannot be read from " + config.getString("printer.device", "/dev/serial0"));
+			} else {
+				monitor = StatusMonitor.fromConfig(transmitter, in, config);
+				monitor.start();
+			}
 		}
 	}
 
-	public static void reset() { //Reset the printer
-		write(new byte[]{0x1b, 0x40});
+	public String getName() {
+		return name;
 	}
 
-	public static void newline() { //New line
-		write(new byte[]{0x0a});
+	public OutputSink getSink() {
+		return sink;
 	}
 
-	public static void cr() { //Carrige return
-		write(new byte[]{0x0d});
+	public void print(Packet packet) throws IOException { //Render and print a Packet
+		print(ReceiptRenderer.render(packet));
 	}
 
-	public static void style(int code) { //Set the style
-		byte _code = (byte) code;
-		write(new byte[]{0x1b, 0x21, _code});
-	}
-
-	public static void cut() { //Cut the paper
-		newline(); newline(); newline(); newline(); //Feed some paper
-		write(new byte[]{0x1b, 0x69});
-	}
-
-
-	public static void print(Packet packet) throws IOException { //String address, String subtotal, String shipping, String total, String[] items) {
-		printLogo();
-		justify(1);
-		style(0x38); //Double height, double width, bold
-		write("Packing List");
-		cr();newline();
-		justify(0);
-		style(0x88); //bold, underlined
-		write("From:");
-		cr();
-		style(0x00);
-		for (String line: packet.from) {
-			write("    ");
-			printSplitString(line, 4);
-			cr();
-		}
-		style(0x88);
-		write("To:");
-		cr();
-		style(0x00);
-		justify(0);
-		for (String line: packet.to) {
-			write("    ");
-			printSplitString(line, 4);
-			cr();
-		}
-		newline();
-
-		style(0x88); //Bold, underlined
-		justify(1);
-		//Linespacing? 0x1b 0x32
-		write("Items");
-		cr(); newline();
-		//Linespacing? 0x1b 0x30
-		justify(0);
-		write("SKU   Unit Price    QTY    Price");
-		cr();newline();
-		style(0x00); //Clear
-		int c = 1;
-		for (Item item: packet.items) {
-			write(c + ".  ");
-			printSplitString(item.desc, 4); //Use helper function to make sure item description fits well
-			cr();
-			write(padItemSpecs(item.sku, (item.price/item.qty), item.qty, item.price));
-			cr(); newline();
-			c++;
-		}
-		cr();newline();
-		style(0x88); //Bold, underline
-		write("Subtotal:");
-		style(0x00); //Clear
-		cr();
-		write("    $" + String.format("%.2f",packet.subtotal));
-		cr();
-		style(0x88); //Bold, underline
-		write("Shipping:");
-		style(0x00); //Clear
-		cr();
-		write("    $" + String.format("%.2f",packet.shipping));
-		cr();
-		style(0x88); //Bold, underline
-		write("Tax:");
-		style(0x00); //Clear
-		cr();
-		write("    $" + String.format("%.2f",packet.tax));
-		cr();
-		style(0x88); //Bold, underline
-		write("Total:");
-		style(0x00); //Clear
-		cr();
-		write("    $" + String.format("%.2f",packet.total));
-		cr();newline();
-		for (String line: packet.messages) {
-			write(line);
-			cr();newline();
+	public Logo storeLogo(Logo logo, String marker) throws IOException { //Save <logo> in the printer's NV memory (only if it has changed since the last time, as NV memory wears out) and return the stored version
+		if (!logo.canStore()) return logo;
+		File file = new File(marker); //Holds the hash of the logo last stored
+		String hash = logo.hash();
+		if (!file.exists() || !new String(java.nio.file.Files.readAllBytes(file.toPath()), "UTF-8").trim().equals(hash)) {
+			Log.info("Printer", "Storing logo in printer memory (" + name + ")");
+			if (monitor != null) monitor.hold(true); //Not polled until the printer has stored it
+			try {
+				print(logo.storeCommand());
+			} finally {
+				if (monitor != null) monitor.hold(false);
+			}
+			try (FileWriter fout = new FileWriter(file)) {
+				fout.write(hash);
+			}
 		}
-		cut();
+		return logo.asStored();
 	}
 
-	private static void write(byte[] data) { //Byte write function
+	public void print(byte[] receipt) throws IOException { //Print an already rendered receipt (see ReceiptRenderer)
+		if (monitor == null) {
+			transmitter.send(receipt);
+			return;
+		}
 		try {
-			fp.write(data);
-			Thread.sleep(30); //Delay so as to not overfill print buffer
-		} catch (Exception e) {
+			while (true) { //Until the printer has printed it without a fault
+				monitor.awaitOk(); //Paused while out of paper, etc.
+				transmitter.send(receipt);
+				long wait = transmitter.idleIn() + monitor.getInterval() * 2L; //Time to print it, and to notice if something goes wrong
+				if (monitor.awaitCaughtUp(wait)) {
+					transmitter.caughtUp(); //Printed - the next job can start now rather than when the estimate says
+					return;
+				}
+				StatusMonitor.State state = monitor.getState();
+				if (state == StatusMonitor.State.OK) return; //No reply, but nothing wrong seen - assume it printed
+				Log.error("Printer", state + " while printing on " + name + ", printing the job again once the printer is ready");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the printer");
 		}
 	}
 
-	private static void write(String data) { //String write function
+	public void print(ReceiptStream stream) throws IOException { //Print a receipt as its parts arrive (each part as in print(byte[])), until it has ended
 		try {
-			for (int i=0; i<data.length(); i++) { //Iterate over String
-				fp.write(data.charAt(i));
-			}
-			Thread.sleep(10);
-		} catch (Exception e) {
+			byte[] part;
+			while ((part = stream.next()) != null) print(part);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the receipt");
+		} finally {
+			stream.close(); //Tells the connection if printing stopped early
 		}
+	}
 
+	public long readyIn() { //Time until the printer can take the next job (ms): estimated from what was sent, or the next status poll if it is not ready
+		if (monitor != null && monitor.getState() != StatusMonitor.State.OK) return monitor.getInterval();
+		return transmitter.idleIn();
 	}
 
+	public boolean isFaulted() { //The printer has reported a fault (always false if the status is not read)
+		return monitor != null && monitor.getState() != StatusMonitor.State.OK;
+	}
 
-	private static void printSplitString(String desc, int start) { //Split the string desc into 32-character or less (minus start for first line) substrings and place return character in between (start is removed from count on first line to account for tabs, etc.) and print the result
-		while (desc.length() > 32-start) { //Continue until nothing left to add
-			int end = desc.substring(0, 32-start).lastIndexOf(" ") + 1; //Get the last index
-			write(desc.substring(0, end)); //Write out the part
-			cr();
-			desc = desc.substring(end); //Crop of the added part
-			start = 0; //Set start to 0 after first loop
-		}
-		write(desc); //Write the remainder
-		cr();
+	public void setStatusListener(Consumer<StatusMonitor.State> listener) { //Told when the printer's status changes (only if printer.status is set)
+		if (monitor != null) monitor.setListener(listener);
 	}
 
-	private static String padItemSpecs(String sku, double unit, int qty, double price) { //Return the padded out (using spaces) specs
-		String output = String.format("%-8s",sku);
-		output += "$" + String.format("%-11.2f",unit);
-		output += String.format("%-5d",qty);
-		output += "$" + String.format("%.2f",price); //No need to pad since last item
-		return output;
+	public void close() throws IOException {
+		if (monitor != null) monitor.stop();
+		sink.close();
 	}
 }
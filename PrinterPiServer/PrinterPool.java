@@ -0,0 +1,246 @@
+/*
+ *    PrinterPool.java - Runs one or more printers, each with its own print queue, and decides which printer each job goes to
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrinterPool {
+	public enum Routing { //How a printer is picked for jobs that do not name one
+		LEAST_QUEUED, //Printer with the fewest jobs waiting or printing
+		ROUND_ROBIN //Each printer in turn
+	}
+
+	private List<Printer> printers = new ArrayList<Printer>();
+	private List<Spooler> spoolers = new ArrayList<Spooler>(); //Same order as printers
+	private Routing routing;
+	private AtomicInteger next = new AtomicInteger(); //Next printer for ROUND_ROBIN
+	private volatile Journal journal; //Records queued and finished jobs (null for none)
+	private final Object queueing = new Object(); //Held while adding jobs, so a batch's room check and its jobs being added happen together
+	private long failureWindow = 60000; //Printers that failed a job this recently (ms), or report a fault, are only picked if no other printer can take the job
+
+	public PrinterPool(Routing routing) {
+		this.routing = routing;
+	}
+
+	public static PrinterPool fromConfig(Config config, Runnable onRelease) throws IOException { //Open the printers listed in <printers> (each set up by printer.<name>.* settings), calling <onRelease> before each job prints
+		Routing routing;
+		try {
+			routing = Routing.valueOf(config.getString("pool.routing", "LEAST_QUEUED").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Log.error("PrinterPool", "Unknown routing, using LEAST_QUEUED");
+			routing = Routing.LEAST_QUEUED;
+		}
+		PrinterPool pool = new PrinterPool(routing);
+		pool.setFailureWindow(config.getInt("pool.failureWindow", 60000));
+		for (String name: config.getString("printers", "main").split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) continue;
+			Config scoped = config.scoped(name);
+			Printer printer = new Printer(name, scoped);
+			Spooler spooler = Spooler.fromConfig(scoped, job -> {
+				if (onRelease != null) onRelease.run();
+				if (job.stream != null) printer.print(job.stream);
+				else printer.print(job.data);
+				pool.finished(job); //Not reached if printing failed, so the job is tried again after a restart
+			});
+			spooler.setReadyCheck(printer::readyIn); //The next job is only picked once the printer has caught up, so a job arriving meanwhile can still go first
+			pool.add(printer, spooler);
+		}
+		if (pool.printers.isEmpty())
+			throw new IllegalArgumentException("No printers set up - check the printers setting");
+		return pool;
+	}
+
+	public synchronized void add(Printer printer, Spooler spooler) { //Add a printer with its queue (before start)
+		printers.add(printer);
+		spoolers.add(spooler);
+		spooler.setDropListener(this::finished);
+	}
+
+	public void setFailureWindow(long failureWindow) {
+		this.failureWindow = failureWindow;
+	}
+
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	public void start() { //Start every printer's printing thread
+		for (Spooler spooler: spoolers) spooler.start();
+	}
+
+	public void shutdown() {
+		for (Spooler spooler: spoolers) spooler.shutdown();
+	}
+
+	public boolean submit(PrintJob job) { //Queue a new job (recording it in the journal first, so it is never printed before it is recorded)
+		Journal j = journal;
+		if (j != null && job.packet != null && job.stream == null) { //Reprints are not recorded, nor streamed jobs (which are printed while being read)
+			try {
+				j.queued(job);
+			} catch (IOException e) {
+				Log.error("PrinterPool", "Could not record job " + job.id + " in the journal. " + e.toString());
+			}
+		}
+		boolean queued;
+		synchronized (queueing) {
+			queued = route(job, false);
+		}
+		if (!queued) queued = route(job, true); //Wait for room (spooler.overflow = BLOCK) without holding up jobs for other printers
+		if (!queued) finished(job); //Rejected - nothing to replay
+		return queued;
+	}
+
+	public boolean submitAll(List<PrintJob> jobs) { //Queue a batch of new jobs - either all of them are queued, or none are (if there is not room for them all)
+		Journal j = journal;
+		if (j != null) {
+			try {
+				j.queued(jobs); //One write (and fsync) for the whole batch
+			} catch (IOException e) {
+				Log.error("PrinterPool", "Could not record " + jobs.size() + " jobs in the journal. " + e.toString());
+			}
+		}
+		boolean queued;
+		synchronized (queueing) {
+			int[] picks = plan(jobs);
+			queued = picks != null;
+			if (queued) {
+				for (int i=0; i<picks.length; i++) spoolers.get(picks[i]).submit(jobs.get(i)); //Room was checked, so none are rejected
+			}
+		}
+		if (!queued) {
+			for (PrintJob job: jobs) finished(job);
+		}
+		return queued;
+	}
+
+	public void restore(List<PrintJob> jobs) { //Queue jobs read back from the journal (already recorded)
+		for (PrintJob job: jobs) {
+			if (!route(job, false) && !route(job, true))
+				Log.error("PrinterPool", "No room for job " + job.id + " from the journal, it will be tried again after the next restart");
+		}
+	}
+
+	private void finished(PrintJob job) { //A job has printed or been dropped
+		if (job.stream != null) {
+			job.stream.close(); //Dropped before it printed
+			return;
+		}
+		Journal j = journal;
+		if (j != null && job.packet != null) j.done(job.id);
+	}
+
+	private int[] plan(List<PrintJob> jobs) { //Pick a printer for each job in the same way as route, counting the room left in each queue (null if they do not all fit)
+		int count = spoolers.size();
+		boolean[] ok = health();
+		int[] room = new int[count];
+		int[] load = new int[count];
+		for (int i=0; i<count; i++) {
+			room[i] = spoolers.get(i).room();
+			load[i] = spoolers.get(i).load();
+		}
+		int[] picks = new int[jobs.size()];
+		for (int k=0; k<picks.length; k++) {
+			String target = jobs.get(k).packet.printer;
+			int pick = target != null ? indexOf(target) : -1;
+			if (pick < 0) {
+				int first = routing == Routing.ROUND_ROBIN ? Math.floorMod(next.getAndIncrement(), count) : leastOf(load, ok);
+				for (int p: order(first, ok)) {
+					if (room[p] > 0) {
+						pick = p;
+						break;
+					}
+				}
+			}
+			if (pick < 0 || room[pick] <= 0) return null;
+			picks[k] = pick;
+			room[pick]--;
+			load[pick]++;
+		}
+		return picks;
+	}
+
+	private boolean route(PrintJob job, boolean wait) { //Queue a job on the printer it names, or else one picked by the routing (trying the others if that queue is full) - with <wait>, waits for room (Overflow.BLOCK) on the printer it names or the first choice only
+		int count = spoolers.size();
+		String target = job.packet != null ? job.packet.printer : null;
+		if (target != null) {
+			int i = indexOf(target);
+			if (i >= 0) return spoolers.get(i).submit(job, wait);
+			if (!wait) Log.error("PrinterPool", "Unknown printer " + target + ", using any printer");
+		}
+		boolean[] ok = health();
+		int[] order = order(routing == Routing.ROUND_ROBIN ? Math.floorMod(next.getAndIncrement(), count) : leastQueued(ok), ok);
+		if (wait) return spoolers.get(order[0]).submit(job, true);
+		for (int p: order) {
+			if (spoolers.get(p).submit(job, false)) return true;
+		}
+		return false;
+	}
+
+	private boolean[] health() { //Whether each printer is working: no fault reported, and no job failed within the failure window
+		boolean[] ok = new boolean[printers.size()];
+		for (int i=0; i<ok.length; i++) ok[i] = !printers.get(i).isFaulted() && !spoolers.get(i).failedWithin(failureWindow);
+		return ok;
+	}
+
+	private static int[] order(int first, boolean[] ok) { //Every printer in turn from <first>, the working ones before the others
+		int[] order = new int[ok.length];
+		int n = 0;
+		for (int pass=0; pass<2; pass++) {
+			for (int i=0; i<ok.length; i++) {
+				int p = (first + i) % ok.length;
+				if (ok[p] == (pass == 0)) order[n++] = p;
+			}
+		}
+		return order;
+	}
+
+	public int depth() { //Jobs waiting on every printer
+		int depth = 0;
+		for (Spooler spooler: spoolers) depth += spooler.depth();
+		return depth;
+	}
+
+	public List<Printer> getPrinters() {
+		return printers;
+	}
+
+	private int indexOf(String name) {
+		for (int i=0; i<printers.size(); i++) {
+			if (printers.get(i).getName().equalsIgnoreCase(name)) return i;
+		}
+		return -1;
+	}
+
+	private int leastQueued(boolean[] ok) { //Working printer with the fewest jobs (or any printer, if none are working)
+		int[] load = new int[spoolers.size()];
+		for (int i=0; i<load.length; i++) load[i] = spoolers.get(i).load();
+		return leastOf(load, ok);
+	}
+
+	private static int leastOf(int[] load, boolean[] ok) {
+		int best = 0;
+		for (int i=1; i<load.length; i++) {
+			if (ok[i] && !ok[best] || ok[i] == ok[best] && load[i] < load[best]) best = i;
+		}
+		return best;
+	}
+}
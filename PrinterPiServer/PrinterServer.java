@@ -21,139 +21,464 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.lang.Integer;
-import java.lang.Character;
-import java.lang.Double;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 public class PrinterServer {
+	public interface JobHandler { //Receives the results of each connection (called from the connection threads)
+		long submit(Packet packet, String key); //Queue a complete packet (<key> is the request's Idempotency-Key, or null) - return its job ID, or -1 if it cannot be accepted (the client is told to retry later)
+		long[] submitAll(List<Packet> packets, String key); //Queue a batch of complete packets, all or none - return their job IDs, or null if they cannot be accepted
+		long reprint(long id); //Queue job <id> to be printed again - return the new job's ID, 0 if job <id> is no longer kept, or -1 if it cannot be accepted
+		ReceiptStream stream(Packet packet, String key); //Queue <packet> to be printed while its items are still being read (its From and To have been) - return the stream to add them to, or null to read the request whole instead
+		void streamed(ReceiptStream stream, String key, boolean printed); //A stream returned by stream has ended: completely received, or voided
+		void error(); //A request could not be read or was incomplete
+	}
+
 	private ServerSocket serv;
+	private int maxConnections; //Most connections parsed at once
+	private int maxIdle = 64; //Most connections kept open waiting for their next request (these do not count towards maxConnections)
+	private int timeout; //Socket read timeout (ms)
+	private int keepAlive = 5000; //How long an idle connection is kept open for another request (ms, 0 to close after every request)
+	private int maxRequests = 100; //Most requests answered on one connection
+	private int maxBatch = 256; //Most packets in one batch request
+	private boolean streaming; //Print single text requests while they are still arriving (see ReceiptStream)
+	private static final int MAX_BINARY = 1 << 20; //Largest binary request body (read whole, then decoded)
+	private ExecutorService workers;
+	private Semaphore slots; //One per connection being parsed
+	private Semaphore idle; //One per connection waiting for its next request
 
 	public PrinterServer() throws IOException { //Constructor
-		serv = new ServerSocket(9321); //Create the server
+		this(9321, 16, 1000, 128);
+	}
+
+	public PrinterServer(int port, int maxConnections, int timeout, int backlog) throws IOException {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("Maximum connections must be at least 1");
+		this.maxConnections = maxConnections;
+		this.timeout = timeout;
+		serv = new ServerSocket(port, Math.max(backlog, maxConnections)); //Create the server (clients beyond the limit wait in the listen backlog, so bursts are not refused)
+	}
+
+	public void setMaxBatch(int maxBatch) {
+		this.maxBatch = maxBatch;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public void setKeepAlive(int keepAlive, int maxRequests) {
+		this.keepAlive = keepAlive;
+		this.maxRequests = maxRequests;
+	}
+
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = maxIdle;
 	}
 
 	public void close() throws IOException { //Destructor
 		serv.close();
+		if (workers != null) workers.shutdown();
 	}
 
-	public Packet getPacket() { //Waits until client connects and return a Packet object of the data (or null if failed)
+	public void listen(JobHandler handler) { //Accept connections until closed, parsing each on a worker thread and passing the result to <handler>. Blocks the calling thread
+		workers = Executors.newCachedThreadPool(); //At most maxConnections + maxIdle threads, as each holds a slot or an idle permit
+		slots = new Semaphore(maxConnections);
+		idle = new Semaphore(Math.max(maxIdle, 0));
+		while (!serv.isClosed()) {
+			try {
+				slots.acquire(); //Backpressure - only accept when a worker is free, otherwise clients queue in the backlog
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				Socket client = serv.accept(); //Wait until there is a connection
+				long accepted = System.nanoTime();
+				workers.execute(() -> serve(client, handler, accepted)); //Releases the slot
+			} catch (IOException e) {
+				slots.release();
+				if (!serv.isClosed())
+					Log.error("PrinterServer", "Error while accepting connection. " + e.toString());
+			}
+		}
+	}
+
+	private static class Request { //Request line and the headers that are used
+		String method;
+		String path;
+		boolean http11; //HTTP/1.1 (otherwise 1.0)
+		long length; //Content-Length
+		boolean chunked; //Transfer-Encoding: chunked
+		boolean keepAlive;
+		boolean expectContinue; //Expect: 100-continue
+		boolean binary; //Content-Type is the PacketCodec format (otherwise the text format)
+		String key; //Idempotency-Key - repeats of a request with the same key are not printed again
+		long start; //When the request began (System.nanoTime): when the connection was accepted, or when its request line arrived on a kept open connection
+	}
+
+	private static class Response {
+		int status;
+		String reason;
+		String body; //null for none
+		String type = "application/json"; //Content-Type of the body
+		String headers = ""; //Extra headers, each ending with CR LF
+		boolean close; //Close the connection after this response instead of reading the rest of the request
+
+		Response(int status, String reason, String body) {
+			this.status = status;
+			this.reason = reason;
+			this.body = body;
+		}
+	}
+
+	private void serve(Socket client, JobHandler handler, long accepted) { //Answer requests from <client> in the order they are sent (so they can be pipelined) until it closes the connection, asks for it to be closed or is idle too long. Called holding a slot, which is given back while waiting for the next request and released at the end. Safe to call from several threads at once
+		boolean working = true; //Holding a slot
 		try { //Overall try-catch to prevent exceptions in client - writes to log file instead
-			Socket client = serv.accept(); //Wait until there is a connection
-			client.setSoTimeout(1000); //Set the timeout to 1000ms
-			System.out.println("(PrinterServer) -INFO- Connection received");
-
-			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			PrintWriter out = new PrintWriter(client.getOutputStream());
-
-			String response; //Response to request
-
-			String method = in.readLine();
-			int dataLen = 0;
-			if (method.startsWith("POST")) { //Only accept POST requests
-				String header;
-				while ((header = in.readLine()) != null && header.length() > 0) { //Read newlines until the end of input or until there is no data
-					String headerName = header.substring(0, header.indexOf(":")).toLowerCase();
-					String headerContent = header.substring(header.indexOf(":")+2).toLowerCase();
-					switch (headerName) {
-						case "content-length":
-							dataLen = Integer.parseInt(headerContent);
-							System.out.println("(PrinterServer) -INFO- Data length to read: " + dataLen);
-							break;
-						default:
-							System.out.println("(PrinterServer) -INFO- Unused header: " + header);
+			Log.debug("PrinterServer", "Connection received");
+			InputStream in = new BufferedInputStream(client.getInputStream());
+			OutputStream out = new BufferedOutputStream(client.getOutputStream());
+			PacketParser lines = new PacketParser(in); //Reads the request and header lines
+
+			for (int count=1; ; count++) {
+				client.setSoTimeout(count == 1 || keepAlive <= 0 ? timeout : keepAlive); //Set the read timeout (longer while waiting for a following request)
+				boolean idling = count > 1 && in.available() == 0; //Waiting for the next request - another connection can be parsed meanwhile
+				if (idling) {
+					if (!idle.tryAcquire()) break; //Too many connections open already - close this one
+					slots.release();
+					working = false;
+				}
+				String requestLine;
+				try {
+					do {
+						requestLine = lines.readLine();
+					} while (requestLine != null && requestLine.isEmpty()); //Some clients send a blank line after the body
+				} catch (SocketTimeoutException e) {
+					if (count == 1) throw e;
+					break; //Idle - close the connection
+				} finally {
+					if (idling) idle.release();
+				}
+				if (requestLine == null) break; //Client closed the connection
+				if (!working) {
+					slots.acquire(); //Wait for a free slot to parse the request in
+					working = true;
+				}
+				long start = count == 1 ? accepted : System.nanoTime();
+				client.setSoTimeout(timeout);
+				Metrics.REQUESTS.inc();
+
+				Request req;
+				try {
+					req = readHeaders(lines, requestLine);
+				} catch (IllegalArgumentException e) { //Malformed request - the rest of the connection cannot be trusted
+					rejected(handler, true);
+					write(out, new Response(400, "Bad Request", error(e.getMessage())), false);
+					break;
+				}
+				req.keepAlive &= count < maxRequests && keepAlive > 0;
+				req.start = start;
+
+				if (req.expectContinue) { //Client waits for this before sending the body
+					out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+				}
+				RequestBody body = new RequestBody(in, req.length, req.chunked);
+				Response response = handle(req, body, handler);
+				if (response.status >= 400 && response.status < 500) rejected(handler, response.status == 400); //Client errors flash the error LED, and only bad requests count as parse errors
+				else if (response.status == 200 && req.method.equals("POST")) Metrics.ACCEPT_TO_QUEUE.observe(System.nanoTime() - req.start);
+				if (response.close) req.keepAlive = false; //The rest of the request is not worth reading
+				else {
+					try {
+						body.drain(); //Whatever was not read (such as after an error), so the next request starts in the right place
+					} catch (IOException e) {
+						req.keepAlive = false;
 					}
 				}
-			} else {
-				response = "HTTP/1.0 400 Bad Request\r\nContent-Type: application/json\r\n\r\n{\"success\":false,\"error\":\"Method type must be POST\"}\r\n";
-				out.print(response);
-				out.flush();
+				write(out, response, req.keepAlive);
+				if (!req.keepAlive) break;
+				if (in.available() == 0) out.flush(); //Pipelined requests waiting are answered first, then flushed together
+			}
+			out.flush();
+		} catch (Exception e) {
+			Log.error("PrinterServer", "Error while receiving and/or processing data. External loop error: " + e.toString());
+			rejected(handler, true);
+		} finally {
+			try {
 				client.close();
-				return null;
+			} catch (IOException ce) {} //Nothing to do
+			if (working) slots.release();
+		}
+	}
+
+	private static Request readHeaders(PacketParser lines, String requestLine) throws IOException { //Read the headers following <requestLine>
+		String[] parts = requestLine.split(" ");
+		if (parts.length != 3 || !parts[2].startsWith("HTTP/1."))
+			throw new IllegalArgumentException("Invalid request line");
+		Request req = new Request();
+		req.method = parts[0];
+		req.path = parts[1];
+		req.http11 = !parts[2].equals("HTTP/1.0");
+		req.keepAlive = req.http11; //HTTP/1.1 connections stay open unless the client says otherwise
+		String header;
+		while ((header = lines.readLine()) != null && header.length() > 0) { //Read newlines until the end of input or until there is no data
+			int colon = header.indexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Invalid header: " + header);
+			String headerName = header.substring(0, colon).trim().toLowerCase();
+			String headerContent = header.substring(colon+1).trim().toLowerCase();
+			switch (headerName) {
+				case "idempotency-key":
+					req.key = header.substring(colon+1).trim(); //Case kept
+					break;
+				case "content-length":
+					try {
+						req.length = Long.parseLong(headerContent);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid Content-Length");
+					}
+					if (Log.isEnabled(Log.Level.DEBUG)) Log.debug("PrinterServer", "Data length to read: " + req.length);
+					break;
+				case "transfer-encoding":
+					req.chunked = headerContent.endsWith("chunked");
+					if (!req.chunked)
+						throw new IllegalArgumentException("Unsupported Transfer-Encoding: " + headerContent);
+					break;
+				case "connection":
+					if (headerContent.contains("close")) req.keepAlive = false;
+					else if (headerContent.contains("keep-alive")) req.keepAlive = true;
+					break;
+				case "content-type":
+					req.binary = headerContent.startsWith(PacketCodec.CONTENT_TYPE);
+					break;
+				case "expect":
+					req.expectContinue = req.http11 && headerContent.equals("100-continue");
+					break;
+				default:
+					if (Log.isEnabled(Log.Level.DEBUG)) Log.debug("PrinterServer", "Unused header: " + header);
 			}
+		}
+		return req;
+	}
+
+	private Response handle(Request req, RequestBody body, JobHandler handler) { //Answer one request, reading its body
+		if (req.method.equals("OPTIONS")) { //CORS preflight
+			Response response = new Response(204, "No Content", null);
+			response.headers = "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\nAccess-Control-Allow-Headers: Content-Type, Idempotency-Key\r\nAccess-Control-Max-Age: 86400\r\n"
+					+ "Accept-Post: text/plain, " + PacketCodec.CONTENT_TYPE + "\r\n"; //Body formats that can be sent
+			return response;
+		}
+		if (req.method.equals("GET") && req.path.equals("/metrics")) { //Counters and timings for Prometheus (see Metrics)
+			Response response = new Response(200, "OK", Metrics.scrape());
+			response.type = "text/plain; version=0.0.4; charset=utf-8";
+			return response;
+		}
+		if (!req.method.equals("POST")) { //Only accept POST requests (and GET /metrics)
+			Response response = new Response(405, "Method Not Allowed", error("Method type must be POST (or GET for /metrics)"));
+			response.headers = "Allow: GET, POST, OPTIONS\r\n";
+			return response;
+		}
 
+		/*
+			Data format (NOTE: item descs and skus MUST NOT CONTAIN ~ or ` and NO EXTRA SPACES ARE ALLOWED. ` signifies end of transmission):
 
+			To: Line1/n/Line2/n/Line3
+			From: Line1/n/Line2/n/Line3
+			Subtotal: $5.00
+			Shipping: $3.00
+			SaveFile: 1
+			Item: Item_1~I123~1~$1.00
+			Item: Item 2, And 3~I32-+A5~44~$1.00
+			Message: Contact me at eikyutsuho@gmail.com if you have any questions/concerns/n/Thank you for your business!
+			`
 
-			/*
-				Data format (NOTE: item descs and skus MUST NOT CONTAIN ~ or ` and NO EXTRA SPACES ARE ALLOWED. ` signifies end of transmission):
+			A batch (POST /batch) is any number of these one after another, each ending with `. The packets are read as they arrive,
+			and are then queued together: if any packet is invalid, or there is not room for them all, none of them are printed.
 
-				To: Line1/n/Line2/n/Line3
-				From: Line1/n/Line2/n/Line3
-				Subtotal: $5.00
-				Shipping: $3.00
-				SaveFile: 1
-				Item: Item_1~I123~1~$1.00
-				Item: Item 2, And 3~I32-+A5~44~$1.00
-				Message: Contact me at eikyutsuho@gmail.com if you have any questions/concerns/n/Thank you for your business!
-				`
-			*/
+			With Content-Type application/x-printerpi the body is instead in the binary format of PacketCodec (which has no separators,
+			so descriptions may contain any character).
 
-			//Parse the data Packet
-			Packet pkt = new Packet();
-			try {
-				int i = 0;
-				String body = ""; //Body of request
-				char curr;
-				while ((i++) < dataLen && (curr = (char)in.read()) != '`') {
-					body = body + Character.toString(curr);
-				}
-				String[] params = body.split("\n");
-				for (i=0; i<params.length; i++) {
-					String key = params[i].substring(0, params[i].indexOf(":")).toLowerCase();
-					String value = params[i].substring(params[i].indexOf(":")+2);
-					switch (key) {
-						case "to":
-							pkt.to = value.split("/n/");
-							break;
-						case "from":
-							pkt.from = value.split("/n/");
-							break;
-						case "subtotal":
-							pkt.subtotal = Double.parseDouble(value.substring(1));
-							break;
-						case "shipping":
-							pkt.shipping = Double.parseDouble(value.substring(1));
-							break;
-						case "tax":
-							pkt.tax = Double.parseDouble(value.substring(1));
-							break;
-						case "item":
-							String desc = value.substring(0, value.indexOf("~"));
-							value = value.substring(value.indexOf("~")+1);
-							String sku = value.substring(0, value.indexOf("~"));
-							value = value.substring(value.indexOf("~")+1);
-							int qty = Integer.parseInt(value.substring(0, value.indexOf("~")));
-							value = value.substring(value.indexOf("~")+1);
-							double price = Double.parseDouble(value.substring(1, value.length()));
-							Item itm = new Item(desc, sku, qty, price);
-							pkt.items.add(itm);
-							break;
-						case "message":
-							pkt.messages = value.split("~");
-							break;
-						default:
-							System.out.println("Unrecognized parameter: " + key);
-					}
-					pkt.total = pkt.shipping + pkt.subtotal + pkt.tax;
-				}
-				if (pkt.isComplete()) {
-					response = "HTTP/1.0 200 OK\r\nContent-Type: application/json\r\n\r\n{\"success\":true}\r\n";
-				} else {
-					response = "HTTP/1.0 400 Bad Request\r\nContent-Type: application/json\r\n\r\n{\"success\":false,\"error\":\"Incomplete request\"}\r\n";
-					System.out.println("(PrinterServer.java) -ERROR- Error while receiving and/or processing data. Incomplete request");
-					pkt = null;
+			With server.streaming, a single text request starts printing when its first Item: line arrives (if its To: and From: lines have
+			already been read), and lines after that which change the header (such as Printer: or Template:) are too late for it.
+		*/
+
+		if (req.path.startsWith("/reprint/")) return reprint(req.path.substring(9), handler); //POST /reprint/<job ID> - no body needed
+
+		//Parse the data Packet(s)
+		boolean batch = req.path.startsWith("/batch");
+		PacketParser parser = new PacketParser(body); //The body stream ends with the body
+		Response response;
+		try {
+			if (req.binary) return readBinary(body, batch, req.key, handler);
+			response = batch ? readBatch(parser, req.key, handler) : readSingle(parser, req.key, handler);
+		} catch (Exception e) {
+			Log.error("PrinterServer", "Error while receiving and/or processing data. " + e.toString());
+			response = new Response(400, "Bad Request", error(e.toString()));
+		}
+		response.close |= parser.overflowed(); //The rest of an overlong line is not read
+		return response;
+	}
+
+	private Response reprint(String job, JobHandler handler) { //Queue a job that has been printed again
+		long id;
+		try {
+			id = Long.parseLong(job);
+		} catch (NumberFormatException e) {
+			return new Response(400, "Bad Request", error("Invalid job number: " + job));
+		}
+		long reprint = handler.reprint(id);
+		if (reprint == 0)
+			return new Response(404, "Not Found", error("Job " + id + " is no longer kept for reprinting"));
+		if (reprint < 0) {
+			Log.error("PrinterServer", "Print queue full, reprint rejected");
+			return queueFull();
+		}
+		Log.info("PrinterServer", "Reprinting job " + id);
+		return new Response(200, "OK", "{\"success\":true,\"job\":" + reprint + ",\"reprint\":" + id + "}");
+	}
+
+	private Response readSingle(PacketParser parser, String key, JobHandler handler) throws IOException { //Read and submit one packet
+		if (!streaming) return submit(parser.parse(Integer.MAX_VALUE), key, handler);
+		ReceiptStream[] stream = new ReceiptStream[1];
+		boolean[] whole = new boolean[1]; //Not streamed after all - read whole and submitted as usual
+		parser.setItemListener((pkt, item) -> {
+			if (stream[0] == null) { //First item - print the header now if the From and To are known
+				if (whole[0]) return;
+				if (pkt.from == null || pkt.to == null || (stream[0] = handler.stream(pkt, key)) == null) {
+					whole[0] = true;
+					return;
 				}
-			} catch (Exception e) {
-				response = "HTTP/1.0 400 Bad Request\r\nContent-Type: application/json\r\n\r\n{\"success\":false,\"error\":'" + e.toString() + "'}\r\n";
-				System.out.println("(PrinterServer.java) -ERROR- Error while receiving and/or processing data. " + e.toString());
-				pkt = null;
+				Log.info("PrinterServer", "Streaming job " + stream[0].id);
 			}
+			stream[0].item(item);
+		});
+		Packet pkt;
+		try {
+			pkt = parser.parse(Integer.MAX_VALUE);
+			if (stream[0] == null) return submit(pkt, key, handler);
+			if (!pkt.isComplete())
+				throw new IllegalArgumentException("Incomplete request");
+			stream[0].finish();
+		} catch (IOException e) { //Connection lost - the part printed so far is voided
+			if (stream[0] != null) voided(stream[0], e.toString(), key, handler);
+			throw e;
+		} catch (RuntimeException e) {
+			if (stream[0] == null) throw e;
+			voided(stream[0], e.getMessage(), key, handler);
+			Log.error("PrinterServer", "Error while receiving and/or processing data. " + e.toString());
+			return new Response(400, "Bad Request", error(e.getMessage() + " (job " + stream[0].id + " was voided)"));
+		}
+		handler.streamed(stream[0], key, true);
+		return new Response(200, "OK", "{\"success\":true,\"job\":" + stream[0].id + "}");
+	}
 
-			out.print(response);
-			out.flush();
-			client.close();
-			return pkt;
-		} catch (Exception e) {
-			System.out.println("(PrinterServer.java) -ERROR- Error while receiving and/or processing data. External loop error: " + e.toString());
+	private static void voided(ReceiptStream stream, String reason, String key, JobHandler handler) { //Void a streamed receipt whose request could not be read
+		stream.abort(reason);
+		handler.streamed(stream, key, false);
+	}
+
+	private Response readBinary(RequestBody body, boolean batch, String key, JobHandler handler) throws IOException { //Read and submit one packet, or a batch, in the binary format
+		ByteArrayOutputStream data = new ByteArrayOutputStream(512);
+		byte[] buf = new byte[4096];
+		for (int n; (n = body.read(buf, 0, buf.length)) != -1; ) {
+			if (data.size() + n > MAX_BINARY) return tooLarge("Request body too large");
+			data.write(buf, 0, n);
+		}
+		byte[] bytes = data.toByteArray();
+		if (!batch) return submit(PacketCodec.decode(bytes, 0, bytes.length), key, handler);
+		List<Packet> packets = PacketCodec.decodeAll(bytes, 0, bytes.length);
+		for (int i=0; i<packets.size(); i++) {
+			if (!packets.get(i).isComplete())
+				return new Response(400, "Bad Request", error("Incomplete request (job " + (i + 1) + " of the batch)"));
 		}
-		return null;
+		return submitAll(packets, key, handler);
+	}
+
+	private Response submit(Packet pkt, String key, JobHandler handler) { //Submit one packet and return the response
+		if (!pkt.isComplete()) {
+			Log.error("PrinterServer", "Error while receiving and/or processing data. Incomplete request");
+			return new Response(400, "Bad Request", error("Incomplete request"));
+		}
+		long id = handler.submit(pkt, key);
+		if (id < 0) {
+			Log.error("PrinterServer", "Print queue full, job rejected");
+			return queueFull();
+		}
+		return new Response(200, "OK", "{\"success\":true,\"job\":" + id + "}");
+	}
+
+	private Response readBatch(PacketParser parser, String key, JobHandler handler) throws IOException { //Read and submit a batch of packets
+		List<Packet> packets = new ArrayList<Packet>();
+		parser.begin(Integer.MAX_VALUE);
+		Packet pkt;
+		while ((pkt = parser.next()) != null) {
+			if (!pkt.isComplete())
+				return new Response(400, "Bad Request", error("Incomplete request (job " + (packets.size() + 1) + " of the batch)"));
+			if (packets.size() == maxBatch)
+				return tooLarge("Too many jobs in one batch (at most " + maxBatch + ")");
+			packets.add(pkt);
+		}
+		return submitAll(packets, key, handler);
+	}
+
+	private Response submitAll(List<Packet> packets, String key, JobHandler handler) { //Submit a batch of complete packets and return the response
+		if (packets.size() > maxBatch)
+			return tooLarge("Too many jobs in one batch (at most " + maxBatch + ")");
+		if (packets.isEmpty())
+			return new Response(400, "Bad Request", error("Empty batch"));
+		long[] ids = handler.submitAll(packets, key);
+		if (ids == null) {
+			Log.error("PrinterServer", "Not enough room in the print queue, batch of " + packets.size() + " jobs rejected");
+			return queueFull();
+		}
+		StringBuilder json = new StringBuilder("{\"success\":true,\"jobs\":[");
+		for (int i=0; i<ids.length; i++) {
+			if (i > 0) json.append(',');
+			json.append(ids[i]);
+		}
+		json.append("]}");
+		Log.info("PrinterServer", "Batch of " + ids.length + " jobs received");
+		return new Response(200, "OK", json.toString());
+	}
+
+	private void write(OutputStream out, Response response, boolean open) throws IOException { //Write <response> (not flushed), saying whether the connection stays <open>
+		byte[] body = response.body == null ? new byte[0] : (response.type.startsWith("application/json") ? response.body + "\r\n" : response.body).getBytes(StandardCharsets.UTF_8);
+		StringBuilder head = new StringBuilder(160);
+		head.append("HTTP/1.1 ").append(response.status).append(' ').append(response.reason).append("\r\n");
+		if (response.body != null) head.append("Content-Type: ").append(response.type).append("\r\n");
+		head.append("Content-Length: ").append(body.length).append("\r\n");
+		head.append("Access-Control-Allow-Origin: *\r\n"); //The extension (and any page) can read the response
+		head.append(response.headers);
+		if (open) {
+			head.append("Connection: keep-alive\r\nKeep-Alive: timeout=").append(keepAlive / 1000).append("\r\n");
+		} else {
+			head.append("Connection: close\r\n");
+		}
+		head.append("\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		out.write(body);
+	}
+
+	private static void rejected(JobHandler handler, boolean unreadable) { //A request was refused - <unreadable> if it could not be read or was incomplete (rather than refused for what it asked)
+		if (unreadable) Metrics.BAD_REQUESTS.inc();
+		handler.error();
+	}
+
+	private static Response tooLarge(String message) { //Refuse a request that is too large, closing the connection rather than reading the rest of it
+		Response response = new Response(413, "Payload Too Large", error(message));
+		response.close = true;
+		return response;
+	}
+
+	private static Response queueFull() {
+		Metrics.JOBS_REJECTED.inc();
+		Response response = new Response(503, "Service Unavailable", error("Print queue full"));
+		response.headers = "Retry-After: 5\r\n";
+		return response;
+	}
+
+	private static String error(String message) { //JSON error reply (<message> may echo the request, so it is fully escaped)
+		return Log.escape(message, new StringBuilder("{\"success\":false,\"error\":\"")).append("\"}").toString();
 	}
 }
@@ -0,0 +1,185 @@
+/*
+ *    RasterImage.java - Converts any image (PNG, JPEG, etc.) into a black and white Logo for the printer: scales, dithers and packs it to 1 bit
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+public class RasterImage {
+	public static final int PAPER_WIDTH = 384; //Dots across a 58mm printer
+
+	public enum Dither {
+		FLOYD_STEINBERG(16, new int[][]{{1,0,7}, {-1,1,3}, {0,1,5}, {1,1,1}}),
+		JJN(48, new int[][]{{1,0,7}, {2,0,5}, {-2,1,3}, {-1,1,5}, {0,1,7}, {1,1,5}, {2,1,3}, {-2,2,1}, {-1,2,3}, {0,2,5}, {1,2,3}, {2,2,1}}), //Jarvis, Judice, and Ninke (as used by Image Processing.py)
+		ATKINSON(8, new int[][]{{1,0,1}, {2,0,1}, {-1,1,1}, {0,1,1}, {1,1,1}, {0,2,1}}), //Only spreads 3/4 of the error - keeps more contrast
+		ORDERED(0, null); //8x8 Bayer matrix - no error spreading, so each row can be done in parallel
+
+		private final int divisor;
+		private final int[][] weights; //{dx, dy, weight}
+
+		Dither(int divisor, int[][] weights) {
+			this.divisor = divisor;
+			this.weights = weights;
+		}
+	}
+
+	private static final int[] BAYER = { //8x8 threshold matrix (0-63)
+		 0, 32,  8, 40,  2, 34, 10, 42,
+		48, 16, 56, 24, 50, 18, 58, 26,
+		12, 44,  4, 36, 14, 46,  6, 38,
+		60, 28, 52, 20, 62, 30, 54, 22,
+		 3, 35, 11, 43,  1, 33,  9, 41,
+		51, 19, 59, 27, 49, 17, 57, 25,
+		15, 47,  7, 39, 13, 45,  5, 37,
+		63, 31, 55, 23, 61, 29, 53, 21
+	};
+	private static final int CACHE_SIZE = 16;
+	private static final Map<String, Logo> cache = new LinkedHashMap<String, Logo>(CACHE_SIZE, 0.75f, true) { //Most recently used images, keyed by content hash and settings
+		protected boolean removeEldestEntry(Map.Entry<String, Logo> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	public static Logo convert(byte[] image, int width, Dither dither, int bandHeight) throws IOException { //Convert encoded image data (cached, so the same image is only converted once)
+		String key = hash(image) + "/" + width + "/" + dither + "/" + bandHeight;
+		synchronized (cache) {
+			Logo logo = cache.get(key);
+			if (logo != null) return logo;
+		}
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(image));
+		if (img == null)
+			throw new IOException("Unsupported image format");
+		Logo logo = convert(img, width, dither, bandHeight);
+		synchronized (cache) {
+			cache.put(key, logo);
+		}
+		return logo;
+	}
+
+	public static Logo convert(BufferedImage img, int width, Dither dither, int bandHeight) { //Scale <img> to <width> dots wide, dither and pack it
+		width = Math.max(8, width - width % 8); //Rows are sent in whole bytes
+		int height = Math.max(1, (int) Math.round((double) img.getHeight() * width / img.getWidth()));
+		int[] gray = grayscale(img, width, height);
+		if (dither == Dither.ORDERED) {
+			ordered(gray, width, height);
+		} else {
+			diffuse(gray, width, height, dither);
+		}
+		return Logo.fromRaster(pack(gray, width, height), width / 8, height, 0, bandHeight);
+	}
+
+	private static int[] grayscale(BufferedImage img, int width, int height) { //Scale onto a white background (for transparent images) and return the brightness of each dot (0-255)
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.drawImage(img, 0, 0, width, height, null);
+		g.dispose();
+		int[] rgb = scaled.getRGB(0, 0, width, height, null, 0, width);
+		IntStream.range(0, height).parallel().forEach(y -> { //Each band of rows is independent
+			for (int i=y*width, end=i+width; i<end; i++) {
+				int p = rgb[i];
+				rgb[i] = (((p >> 16) & 0xff) * 299 + ((p >> 8) & 0xff) * 587 + (p & 0xff) * 114) / 1000;
+			}
+		});
+		return rgb;
+	}
+
+	private static void diffuse(int[] px, int width, int height, Dither dither) { //Error diffusion - each dot becomes black (0) or white (255) and the error is spread to the dots not yet done
+		int[][] weights = dither.weights;
+		for (int y=0; y<height; y++) {
+			for (int x=0, i=y*width; x<width; x++, i++) {
+				int old = px[i];
+				int now = old > 128 ? 255 : 0;
+				px[i] = now;
+				int err = old - now;
+				if (err == 0) continue;
+				for (int[] w: weights) {
+					int nx = x + w[0], ny = y + w[1];
+					if (nx >= 0 && nx < width && ny < height) px[ny * width + nx] += err * w[2] / dither.divisor;
+				}
+			}
+		}
+	}
+
+	private static void ordered(int[] px, int width, int height) { //Ordered (Bayer) dithering
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x=0, i=y*width; x<width; x++, i++) {
+				int threshold = BAYER[(y % 8) * 8 + x % 8] * 4 + 2;
+				px[i] = px[i] > threshold ? 255 : 0;
+			}
+		});
+	}
+
+	private static byte[] pack(int[] px, int width, int height) { //Pack into 1 bit per dot, 8 dots per byte (MSB first, 1 is black)
+		int rowBytes = width / 8;
+		byte[] bits = new byte[rowBytes * height];
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int b=0; b<rowBytes; b++) {
+				int v = 0;
+				for (int bit=0, i=y*width+b*8; bit<8; bit++, i++) {
+					if (px[i] < 128) v |= 0x80 >> bit;
+				}
+				bits[y * rowBytes + b] = (byte) v;
+			}
+		});
+		return bits;
+	}
+
+	static String hash(byte[]... parts) { //SHA-256 (in hex) of <parts>
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (byte[] part: parts) md.update(part);
+			StringBuilder hex = new StringBuilder();
+			for (byte b: md.digest()) hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) { //Every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static void main(String[] args) throws IOException { //Command line converter: java RasterImage <image> [output (Logo.bin)] [dither (JJN)] [width (384)]
+		if (args.length < 1) {
+			System.out.println("Usage: java RasterImage <image> [output file] [FLOYD_STEINBERG|JJN|ATKINSON|ORDERED] [width]");
+			return;
+		}
+		String out = args.length > 1 ? args[1] : "Logo.bin";
+		Dither dither = args.length > 2 ? Dither.valueOf(args[2].toUpperCase()) : Dither.JJN;
+		int width = args.length > 3 ? Integer.parseInt(args[3]) : PAPER_WIDTH;
+		Logo logo = convert(Files.readAllBytes(new File(args[0]).toPath()), width, dither, 0);
+		try (FileOutputStream fout = new FileOutputStream(out)) {
+			fout.write(logo.toByteArray());
+		}
+		System.out.println("Converted " + args[0] + " to a " + logo.getWidth() + "x" + logo.getHeight() + " logo and saved to " + out);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *    ReceiptBuffer.java - Growable byte buffer that a receipt is rendered into, with helpers for the ESC/POS printer commands
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+public class ReceiptBuffer {
+	private byte[] buf;
+	private int len;
+
+	public ReceiptBuffer() {
+		this(2048);
+	}
+
+	public ReceiptBuffer(int size) { //Start with room for <size> bytes (grows as needed)
+		buf = new byte[Math.max(size, 16)];
+	}
+
+	public ReceiptBuffer write(int b) { //Add a single byte
+		ensure(1);
+		buf[len++] = (byte) b;
+		return this;
+	}
+
+	public ReceiptBuffer write(byte[] data) { //Add raw bytes
+		return write(data, 0, data.length);
+	}
+
+	public ReceiptBuffer write(byte[] data, int off, int count) {
+		ensure(count);
+		System.arraycopy(data, off, buf, len, count);
+		len += count;
+		return this;
+	}
+
+	public ReceiptBuffer write(String data) { //Add text (one byte per character)
+		ensure(data.length());
+		for (int i=0; i<data.length(); i++) {
+			buf[len++] = (byte) data.charAt(i);
+		}
+		return this;
+	}
+
+	public void justify(int set) { //Set the justification
+		switch (set) {
+			case 0:
+				write(0x1b).write(0x61).write(0x00); //Left justify
+				break;
+			case 2:
+				write(0x1b).write(0x61).write(0x02); //Right justify
+				break;
+			default:
+				write(0x1b).write(0x61).write(0x01); //Centered
+		}
+	}
+
+	public void reset() { //Reset the printer
+		write(0x1b).write(0x40);
+	}
+
+	public void newline() { //New line
+		write(0x0a);
+	}
+
+	public void cr() { //Carrige return
+		write(0x0d);
+	}
+
+	public void style(int code) { //Set the style
+		write(0x1b).write(0x21).write(code);
+	}
+
+	public void cut() { //Cut the paper
+		newline(); newline(); newline(); newline(); //Feed some paper
+		write(0x1b).write(0x69);
+	}
+
+	public int size() {
+		return len;
+	}
+
+	public void clear() { //Empty the buffer (keeps the memory for reuse)
+		len = 0;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, len);
+	}
+
+	private void ensure(int extra) { //Make room for <extra> more bytes
+		if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ *    ReceiptCache.java - Keeps the printer data of recent jobs by job ID so receipts can be reprinted without rendering them again
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ReceiptCache {
+	/*
+		Receipts are kept in memory up to <maxBytes>, dropping the least recently used first. If a spill directory is set, dropped
+		receipts are written there instead (up to <maxDiskBytes>, oldest removed first) and read back when asked for. The spill files
+		are written outside the lock, so a slow SD card does not hold up the connection threads; until then they stay in <spilling>.
+		Job IDs are not used again after a restart (see PrintJob), so the spill files of earlier runs are kept and found again at startup.
+		If job.idFile is turned off, IDs start again from 1, so the spill directory is emptied instead.
+	*/
+	private static final String SUFFIX = ".rcpt";
+
+	private long maxBytes;
+	private File dir; //Spill directory (null for none)
+	private long maxDiskBytes;
+	private LinkedHashMap<Long, byte[]> memory = new LinkedHashMap<Long, byte[]>(16, 0.75f, true); //In least recently used order
+	private long memoryBytes;
+	private Map<Long, byte[]> spilling = new HashMap<Long, byte[]>(); //Dropped from memory, not yet on disk
+	private LinkedHashMap<Long, Integer> disk = new LinkedHashMap<Long, Integer>(); //Size of each spill file, oldest first
+	private long diskBytes;
+
+	public ReceiptCache(long maxBytes, File dir, long maxDiskBytes, boolean keep) { //<keep> the receipts spilled by earlier runs (if job IDs are not used again)
+		this.maxBytes = maxBytes;
+		this.dir = dir;
+		this.maxDiskBytes = maxDiskBytes;
+		if (dir != null) {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				Log.error("ReceiptCache", "Could not create the spill directory " + dir);
+			File[] old = dir.listFiles((d, name) -> name.endsWith(SUFFIX) || name.endsWith(".tmp"));
+			if (old != null) {
+				Arrays.sort(old, Comparator.comparingLong(File::lastModified)); //Oldest first
+				for (File f: old) {
+					Long id = keep ? idOf(f.getName()) : null;
+					if (id == null) {
+						f.delete(); //Partly written, or from a run whose IDs are used again
+						continue;
+					}
+					disk.put(id, (int) f.length());
+					diskBytes += f.length();
+				}
+				List<Long> removed = trimDisk();
+				for (long id: removed) file(id).delete();
+				if (!disk.isEmpty()) Log.info("ReceiptCache", disk.size() + " receipt(s) from earlier runs can still be reprinted");
+			}
+		}
+	}
+
+	public static ReceiptCache fromConfig(Config config) { //Create the cache set by cache.size, cache.dir and cache.diskSize (keeping earlier spill files unless job.idFile is off)
+		String dir = config.getString("cache.dir", "");
+		return new ReceiptCache(config.getInt("cache.size", 4194304), dir.isEmpty() ? null : new File(dir), config.getInt("cache.diskSize", 67108864),
+				!config.getString("job.idFile", "PrinterPi.jobid").isEmpty());
+	}
+
+	public void put(long id, byte[] data) { //Keep the printer data of job <id>
+		List<Map.Entry<Long, byte[]>> dropped = new ArrayList<Map.Entry<Long, byte[]>>();
+		synchronized (this) {
+			byte[] old = memory.put(id, data);
+			if (old != null) memoryBytes -= old.length;
+			memoryBytes += data.length;
+			Iterator<Map.Entry<Long, byte[]>> it = memory.entrySet().iterator();
+			while (memoryBytes > maxBytes && it.hasNext()) {
+				Map.Entry<Long, byte[]> e = it.next();
+				it.remove();
+				memoryBytes -= e.getValue().length;
+				if (dir != null) {
+					spilling.put(e.getKey(), e.getValue());
+					dropped.add(e);
+				}
+			}
+		}
+		for (Map.Entry<Long, byte[]> e: dropped) spill(e.getKey(), e.getValue());
+	}
+
+	public byte[] get(long id) { //Printer data of job <id>, or null if it is no longer kept
+		File file;
+		synchronized (this) {
+			byte[] data = memory.get(id);
+			if (data == null) data = spilling.get(id);
+			if (data != null) return data;
+			if (!disk.containsKey(id)) return null;
+			file = file(id);
+		}
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (IOException e) { //Removed to make room in the meantime
+			return null;
+		}
+	}
+
+	private void spill(long id, byte[] data) { //Write a receipt dropped from memory to the spill directory
+		File file = file(id);
+		File temp = new File(dir, id + ".tmp");
+		try {
+			Files.write(temp.toPath(), data);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.error("ReceiptCache", "Could not write receipt " + id + " to the spill directory. " + e.toString());
+			temp.delete();
+			synchronized (this) {
+				spilling.remove(id);
+			}
+			return;
+		}
+		List<Long> removed;
+		synchronized (this) {
+			spilling.remove(id);
+			disk.put(id, data.length);
+			diskBytes += data.length;
+			removed = trimDisk();
+		}
+		for (long old: removed) file(old).delete();
+	}
+
+	private List<Long> trimDisk() { //Forget the oldest spill files until they fit in maxDiskBytes, returning their IDs (to be deleted outside the lock)
+		List<Long> removed = new ArrayList<Long>();
+		Iterator<Map.Entry<Long, Integer>> it = disk.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && it.hasNext()) {
+			Map.Entry<Long, Integer> e = it.next();
+			it.remove();
+			diskBytes -= e.getValue();
+			removed.add(e.getKey());
+		}
+		return removed;
+	}
+
+	private static Long idOf(String name) { //Job ID of a spill file, or null if <name> is not one
+		if (!name.endsWith(SUFFIX)) return null;
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private File file(long id) {
+		return new File(dir, id + SUFFIX);
+	}
+}
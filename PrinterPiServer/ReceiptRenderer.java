@@ -0,0 +1,127 @@
+/*
+ *    ReceiptRenderer.java - Lays out a Packet as a packing list (using a compiled ReceiptTemplate) in a single block of ESC/POS printer data
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReceiptRenderer {
+	/*
+		Templates are compiled for the current layout when they are loaded (and again if the layout changes), so rendering a job only
+		runs the compiled steps. The default template ("" in the maps) is used unless a packet names another with a Template: line.
+	*/
+	private static volatile Logo logo = Logo.EMPTY; //Shared by every job - loaded once at startup
+	private static volatile TextLayout layout = TextLayout.DEFAULT;
+	private static Map<String, String> sources = defaultSources(); //Source of each template, by name
+	private static volatile Map<String, ReceiptTemplate> templates = compile(sources, layout); //Replaced as a whole, so renders need no lock
+
+	public static void setLogo(Logo l) {
+		logo = l;
+	}
+
+	public static synchronized void setLayout(TextLayout l) {
+		layout = l;
+		templates = compile(sources, l);
+	}
+
+	public static synchronized void loadTemplates(Config config) { //Load the template.file template (the built-in one if not set) and those named in templates (template.<name>.file)
+		Map<String, String> loaded = defaultSources();
+		String path = config.getString("template.file", "");
+		if (!path.isEmpty()) {
+			String source = read(path);
+			if (source != null) loaded.put("", source);
+		}
+		for (String name: config.getString("templates", "").split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) continue;
+			path = config.scoped(name).getString("template.file", "");
+			String source = path.isEmpty() ? null : read(path);
+			if (source != null) loaded.put(name, source);
+			else Log.error("ReceiptRenderer", "No template file for " + name + ", using the default template");
+		}
+		sources = loaded;
+		templates = compile(loaded, layout);
+	}
+
+	public static byte[] render(Packet packet) { //Render <packet> into the complete receipt (logo to cut)
+		return templateOf(packet).render(packet, logo);
+	}
+
+	public static ReceiptTemplate.Stream stream(Packet packet) { //Render <packet> in parts while the rest of it is read (null if its template cannot be)
+		return templateOf(packet).stream(packet, logo);
+	}
+
+	public static byte[] voidSlip(String reason) { //Printed after part of a streamed receipt whose request turned out to be invalid, so that part is not used
+		TextLayout text = layout;
+		ReceiptBuffer out = new ReceiptBuffer(256);
+		out.cr(); out.newline(); //End any line already started
+		out.justify(1);
+		text.style(out, 0x38); //Double height, double width, bold
+		out.write("VOID");
+		out.cr(); out.newline();
+		text.style(out, 0x00);
+		text.wrap(out, "Packing list incomplete, do not use: " + reason, 0);
+		out.newline();
+		out.justify(0);
+		out.cut();
+		return out.toByteArray();
+	}
+
+	private static ReceiptTemplate templateOf(Packet packet) { //The template named by <packet> (or the default)
+		Map<String, ReceiptTemplate> t = templates;
+		ReceiptTemplate template = packet.template == null ? null : t.get(packet.template);
+		if (template == null) {
+			if (packet.template != null) Log.error("ReceiptRenderer", "Unknown template " + packet.template + ", using the default template");
+			template = t.get("");
+		}
+		return template;
+	}
+
+	private static Map<String, String> defaultSources() {
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("", ReceiptTemplate.DEFAULT);
+		return map;
+	}
+
+	private static String read(String path) { //Read a template file (null if it cannot be read)
+		try {
+			return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			Log.error("ReceiptRenderer", "Could not read template " + path + ". " + e.toString());
+			return null;
+		}
+	}
+
+	private static Map<String, ReceiptTemplate> compile(Map<String, String> sources, TextLayout layout) { //Compile every template (any that are not valid are replaced by the default)
+		Map<String, ReceiptTemplate> compiled = new HashMap<String, ReceiptTemplate>();
+		ReceiptTemplate fallback = ReceiptTemplate.compile(ReceiptTemplate.DEFAULT, layout);
+		for (Map.Entry<String, String> e: sources.entrySet()) {
+			try {
+				compiled.put(e.getKey(), ReceiptTemplate.compile(e.getValue(), layout));
+			} catch (IllegalArgumentException ex) {
+				Log.error("ReceiptRenderer", "Template " + (e.getKey().isEmpty() ? "template.file" : e.getKey()) + " is not valid, using the default template. " + ex.getMessage());
+				compiled.put(e.getKey(), fallback);
+			}
+		}
+		return compiled;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *    ReceiptStream.java - A receipt printed while its request is still arriving, passed in parts from the connection to the printer
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+public class ReceiptStream {
+	/*
+		With server.streaming, the connection thread renders the header as soon as the first item arrives (the From and To lines having
+		been read before it), then each item as its line is read, and the rest once the request has ended; each part is added here. The
+		printer's spooler thread takes whatever parts have been added since it last looked and sends them, so the printer works while the
+		rest of the request is still being received.
+
+		What has been printed cannot be taken back, so if the rest of the request turns out to be invalid or incomplete, or stops arriving
+		for <timeout> ms, the receipt is voided: a slip saying so is printed after the part already sent, and the paper is cut. If the
+		printer has not taken any of it yet, nothing is printed at all.
+	*/
+	public long id; //Job number
+
+	private ReceiptTemplate.Stream renderer;
+	private int timeout; //Longest wait for the next part once printing has started (ms)
+	private ReceiptBuffer pending = new ReceiptBuffer(); //Parts not yet taken by the printer
+	private ReceiptBuffer all = new ReceiptBuffer(); //Every part (for reprints)
+	private boolean ended; //Finished or voided - nothing more will be added
+	private boolean closed; //The printer stopped taking parts
+	private boolean sent; //The printer has taken some of the receipt
+	private String voided; //Why the receipt was voided (null if it was not)
+
+	public ReceiptStream(ReceiptTemplate.Stream renderer, int timeout) { //Start the receipt, rendering its header
+		this.renderer = renderer;
+		this.timeout = timeout;
+		add(renderer.header());
+	}
+
+	public void item(Item item) { //Render and add the next item - throws IllegalStateException if the receipt can no longer be added to
+		add(renderer.item(item));
+	}
+
+	public void finish() { //Render and add the rest of the receipt, once the whole packet has been read
+		add(renderer.footer());
+		synchronized (this) {
+			ended = true;
+			notifyAll();
+		}
+	}
+
+	public synchronized void abort(String reason) { //Void the receipt: add the void slip, or drop it all if none has been printed (unless it has already ended)
+		if (ended) return;
+		Log.error("ReceiptStream", "Job " + id + " voided: " + reason);
+		voided = reason;
+		if (sent) {
+			byte[] slip = ReceiptRenderer.voidSlip(reason);
+			pending.write(slip);
+			all.write(slip);
+		} else {
+			pending.clear(); //Nothing on paper to void
+		}
+		ended = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isVoided() {
+		return voided != null;
+	}
+
+	public synchronized byte[] next() throws InterruptedException { //Wait for more of the receipt, returning every part added since the last call joined together - or null once it has all been taken
+		long end = System.currentTimeMillis() + timeout;
+		long left;
+		while (pending.size() == 0 && !ended && (left = end - System.currentTimeMillis()) > 0) wait(left);
+		if (pending.size() == 0 && !ended) abort("no more of the request arrived for " + timeout + " ms");
+		if (pending.size() == 0) return null;
+		byte[] part = pending.toByteArray();
+		pending.clear();
+		sent = true;
+		return part;
+	}
+
+	public synchronized void close() { //The printer has stopped taking parts (printed it all, failed or dropped the job)
+		closed = true;
+	}
+
+	public synchronized byte[] data() { //The whole receipt as printed
+		return all.toByteArray();
+	}
+
+	private synchronized void add(byte[] part) {
+		if (voided != null)
+			throw new IllegalStateException("Receipt voided, " + voided);
+		if (closed || ended)
+			throw new IllegalStateException("The printer is no longer printing this receipt");
+		pending.write(part);
+		all.write(part);
+		notifyAll();
+	}
+}
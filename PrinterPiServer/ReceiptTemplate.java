@@ -0,0 +1,520 @@
+/*
+ *    ReceiptTemplate.java - Receipt layout read from a template and compiled once into printer data, so each job only adds its own fields
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+public class ReceiptTemplate {
+	/*
+		Template format: each line is either a command (starting with @) or a line of text, which is printed followed by a carriage
+		return (so an empty line prints just the carriage return). Text can contain fields in braces, and commands in braces such as
+		{@style 0x00} to run one partway through a line ({{ prints a brace, and {"@"} a line starting with @).
+
+		@logo                          The logo
+		@align left|center|right
+		@style <n>                     Print mode (ESC ! n, such as 0x88 for bold and underlined; font B is added if layout.font is B)
+		@lf                            Line feed
+		@cut                           Feed the paper and cut it
+		@each from|to|messages         Repeat up to @end for each line of the address or message ({line})
+		@each items                    Repeat up to @end for each item ({n} {desc} {sku} {qty} {unit} {price})
+		@if <field>                    Print up to @end only if the field is not 0 or empty
+		@end
+		@# ...                         Comment
+
+		Fields: {subtotal} {shipping} {tax} {total} (amounts such as 12.34, without the $) and those of @each. They can be followed by:
+		:wrap     Wrap the text over as many lines as it needs, ending with a carriage return
+		:<n>      Pad with spaces to at least <n> characters; <n>+ also adds the characters by which the paper is wider than 32
+		A quoted string can be padded in the same way ({"SKU":6+}).
+
+		Compiling turns the template into a list of steps. Text and commands are encoded for the printer (in the layout's character set
+		and font) once, and runs of them are joined into single byte arrays, so rendering a receipt copies those arrays and only
+		encodes the fields.
+
+		A template can also be rendered in parts while its request is still arriving (see ReceiptStream): the steps before its @each items,
+		each item, then the steps after. This needs one @each items outside any other block, with nothing before it that is only known
+		once every item has been read (the amounts and messages).
+	*/
+	public static final String DEFAULT = String.join("\n", //Layout used unless another is set (print it with `java ReceiptTemplate` to start a new one)
+			"@logo",
+			"",
+			"@lf",
+			"@align center",
+			"@style 0x38",
+			"Packing List",
+			"@lf",
+			"@align left",
+			"@style 0x88",
+			"From:",
+			"@style 0x00",
+			"@each from",
+			"    {line:wrap}",
+			"@end",
+			"@style 0x88",
+			"To:",
+			"@style 0x00",
+			"@align left",
+			"@each to",
+			"    {line:wrap}",
+			"@end",
+			"@lf",
+			"@style 0x88",
+			"@align center",
+			"Items",
+			"@lf",
+			"@align left",
+			"{\"SKU\":6+}Unit Price    QTY    Price",
+			"@lf",
+			"@style 0x00",
+			"@each items",
+			"{n}.  {desc:wrap}",
+			"{sku:8+}${unit:11}{qty:5}${price}",
+			"@lf",
+			"@end",
+			"",
+			"@lf",
+			"@style 0x88",
+			"Subtotal:{@style 0x00}",
+			"    ${subtotal}",
+			"@style 0x88",
+			"Shipping:{@style 0x00}",
+			"    ${shipping}",
+			"@style 0x88",
+			"Tax:{@style 0x00}",
+			"    ${tax}",
+			"@style 0x88",
+			"Total:{@style 0x00}",
+			"    ${total}",
+			"@lf",
+			"@each messages",
+			"{line}",
+			"@lf",
+			"@end",
+			"@cut");
+
+	private interface Step { //One step of a compiled template
+		void run(Context c);
+	}
+
+	private static class Context { //State while rendering one receipt
+		ReceiptBuffer out;
+		Packet packet;
+		Logo logo;
+		Item item; //Current item of @each items
+		String line; //Current line of @each from/to/messages
+		int n; //Number of the current item (from 1)
+		int column; //Characters on the line so far (for :wrap)
+	}
+
+	private static class Items implements Step { //@each items
+		Step[] body;
+
+		Items(Step[] body) {
+			this.body = body;
+		}
+
+		public void run(Context c) {
+			int n = 1;
+			for (Item item: c.packet.items) {
+				c.item = item;
+				c.n = n++;
+				ReceiptTemplate.run(body, c);
+			}
+		}
+	}
+
+	public class Stream { //Renders one receipt in parts - each call returns the printer data of its part
+		private Context c = new Context();
+
+		private Stream(Packet packet, Logo logo) {
+			c.packet = packet;
+			c.logo = logo;
+		}
+
+		public byte[] header() { //Everything before the items (only From and To need to have been read)
+			return part(0, items);
+		}
+
+		public byte[] item(Item item) { //The next item
+			c.out = new ReceiptBuffer(128);
+			c.item = item;
+			c.n++;
+			run(((Items) steps[items]).body, c);
+			return c.out.toByteArray();
+		}
+
+		public byte[] footer() { //Everything after the items (once the whole packet has been read)
+			return part(items + 1, steps.length);
+		}
+
+		private byte[] part(int from, int to) {
+			c.out = new ReceiptBuffer();
+			for (int i=from; i<to; i++) steps[i].run(c);
+			return c.out.toByteArray();
+		}
+	}
+
+	private enum Kind { MONEY, NUMBER, TEXT } //How a field is written
+
+	private Step[] steps;
+	private TextLayout layout;
+	private int items; //Index of the step of the @each items the template can be streamed around (-1 if it cannot be)
+
+	private ReceiptTemplate(Step[] steps, TextLayout layout, int items) {
+		this.steps = steps;
+		this.layout = layout;
+		this.items = items;
+	}
+
+	public static ReceiptTemplate compile(String source, TextLayout layout) { //Compile <source> for <layout> - throws IllegalArgumentException (giving the line) if it is not valid
+		if (source.endsWith("\n")) source = source.substring(0, source.length() - 1); //Newline at the end of the file
+		String[] lines = source.split("\n", -1);
+		int[] pos = {0};
+		Compiler compiler = new Compiler(layout, lines);
+		List<Step> steps = compiler.block(pos, null);
+		if (pos[0] < lines.length)
+			throw new IllegalArgumentException("Line " + (pos[0] + 1) + ": @end without @each or @if");
+		return new ReceiptTemplate(steps.toArray(new Step[0]), layout, compiler.streamable ? steps.indexOf(compiler.items) : -1);
+	}
+
+	public byte[] render(Packet packet, Logo logo) { //Render <packet> into the complete receipt
+		Context c = new Context();
+		c.out = new ReceiptBuffer();
+		c.packet = packet;
+		c.logo = logo;
+		run(steps, c);
+		return c.out.toByteArray();
+	}
+
+	public Stream stream(Packet packet, Logo logo) { //Render <packet> in parts as it arrives (null if this template cannot be streamed)
+		return items < 0 ? null : new Stream(packet, logo);
+	}
+
+	private static void run(Step[] steps, Context c) {
+		for (Step s: steps) s.run(c);
+	}
+
+	public static void main(String[] args) { //Print the default template
+		System.out.println(DEFAULT);
+	}
+
+	private static class Compiler {
+		private TextLayout layout;
+		private String[] lines;
+		private ReceiptBuffer pending = new ReceiptBuffer(256); //Constant bytes not yet made into a step
+		private int pendingColumns; //Characters after the last carriage return in <pending>
+		private boolean pendingCr; //<pending> has a carriage return (so the column starts again from pendingColumns)
+		private boolean late; //An amount or the messages have been used so far
+		Items items; //The @each items outside any block
+		boolean streamable; //There is one such @each items, and nothing before it uses the amounts or messages
+
+		Compiler(TextLayout layout, String[] lines) {
+			this.layout = layout;
+			this.lines = lines;
+		}
+
+		List<Step> block(int[] pos, String scope) { //Compile lines from pos[0] until the @end of this block (or the end of the template)
+			List<Step> steps = new ArrayList<Step>();
+			for (; pos[0] < lines.length; pos[0]++) {
+				String line = lines[pos[0]];
+				if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+				try {
+					if (line.startsWith("@")) {
+						String[] cmd = line.substring(1).trim().split("\\s+", 2);
+						String arg = cmd.length > 1 ? cmd[1].trim() : "";
+						switch (cmd[0]) {
+							case "#":
+								break;
+							case "end":
+								flush(steps);
+								return steps;
+							case "each":
+								flush(steps);
+								steps.add(each(arg, scope, pos));
+								break;
+							case "if":
+								flush(steps);
+								steps.add(when(arg, scope, pos));
+								break;
+							default:
+								command(cmd[0], arg, steps);
+						}
+					} else {
+						text(line, scope, steps);
+						constant(0x0d);
+					}
+				} catch (IllegalArgumentException e) {
+					if (e.getMessage().startsWith("Line ")) throw e;
+					throw new IllegalArgumentException("Line " + (pos[0] + 1) + ": " + e.getMessage());
+				}
+			}
+			if (scope != null)
+				throw new IllegalArgumentException("Line " + lines.length + ": @each or @if without @end");
+			flush(steps);
+			return steps;
+		}
+
+		private Step each(String list, String scope, int[] pos) {
+			if (!list.equals("items") && !list.equals("from") && !list.equals("to") && !list.equals("messages"))
+				throw new IllegalArgumentException("Unknown list " + list + " (from, to, messages or items)");
+			pos[0]++;
+			if (list.equals("items")) {
+				boolean first = scope == null && items == null && !late;
+				Items step = new Items(block(pos, "items").toArray(new Step[0]));
+				if (scope == null) {
+					streamable = first;
+					items = step;
+				}
+				return step;
+			}
+			if (list.equals("messages")) late = true;
+			Step[] body = block(pos, "line").toArray(new Step[0]);
+			return c -> {
+				String[] lines = list.equals("from") ? c.packet.from : list.equals("to") ? c.packet.to : c.packet.messages;
+				if (lines == null) return;
+				for (String line: lines) {
+					c.line = line;
+					run(body, c);
+				}
+			};
+		}
+
+		private Step when(String field, String scope, int[] pos) {
+			Field f = field(field, scope);
+			pos[0]++;
+			Step[] body = block(pos, scope == null ? "" : scope).toArray(new Step[0]);
+			if (f.kind == Kind.TEXT) {
+				Function<Context, String> text = f.text;
+				return c -> {
+					String s = text.apply(c);
+					if (s != null && !s.isEmpty()) run(body, c);
+				};
+			}
+			ToLongFunction<Context> number = f.number;
+			return c -> {
+				if (number.applyAsLong(c) != 0) run(body, c);
+			};
+		}
+
+		private void command(String name, String arg, List<Step> steps) { //A command that is not a block (at the start of a line or in braces)
+			switch (name) {
+				case "logo":
+					flush(steps);
+					steps.add(c -> c.logo.writeTo(c.out));
+					break;
+				case "align":
+					switch (arg) {
+						case "left":
+							pending.justify(0);
+							break;
+						case "center":
+							pending.justify(1);
+							break;
+						case "right":
+							pending.justify(2);
+							break;
+						default:
+							throw new IllegalArgumentException("Unknown alignment " + arg + " (left, center or right)");
+					}
+					break;
+				case "style":
+					try {
+						layout.style(pending, Integer.decode(arg));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid style " + arg);
+					}
+					break;
+				case "lf":
+					pending.newline();
+					break;
+				case "cut":
+					pending.cut();
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown command @" + name);
+			}
+		}
+
+		private void text(String line, String scope, List<Step> steps) { //Compile one line of text with its fields
+			int i = 0;
+			while (i < line.length()) {
+				char ch = line.charAt(i);
+				if (ch != '{') {
+					literal(String.valueOf(ch));
+					i++;
+					continue;
+				}
+				if (i + 1 < line.length() && line.charAt(i+1) == '{') { //Escaped brace
+					literal("{");
+					i += 2;
+					continue;
+				}
+				int close = line.indexOf('}', i);
+				if (close < 0)
+					throw new IllegalArgumentException("Missing } after " + line.substring(i));
+				String inside = line.substring(i + 1, close).trim();
+				i = close + 1;
+				if (inside.startsWith("@")) {
+					String[] cmd = inside.substring(1).split("\\s+", 2);
+					command(cmd[0], cmd.length > 1 ? cmd[1].trim() : "", steps);
+					continue;
+				}
+				String format = "";
+				int colon = inside.lastIndexOf(':');
+				if (colon >= 0 && !inside.substring(colon).contains("\"")) {
+					format = inside.substring(colon + 1).trim();
+					inside = inside.substring(0, colon).trim();
+				}
+				if (inside.startsWith("\"")) { //Quoted text, padded when compiled
+					if (inside.length() < 2 || !inside.endsWith("\""))
+						throw new IllegalArgumentException("Missing \" in {" + inside + "}");
+					String s = inside.substring(1, inside.length() - 1);
+					literal(s);
+					for (int pad=(format.isEmpty() ? 0 : width(format))-s.length(); pad>0; pad--) literal(" ");
+					continue;
+				}
+				field(inside, scope, format, steps);
+			}
+		}
+
+		private void field(String name, String scope, String format, List<Step> steps) { //Add the step writing field <name>
+			Field f = field(name, scope);
+			ToLongFunction<Context> number = f.number;
+			Function<Context, String> text = f.text;
+			flush(steps);
+			if (format.equals("wrap")) {
+				if (f.kind != Kind.TEXT)
+					throw new IllegalArgumentException("Only text can be wrapped: " + name);
+				steps.add(c -> {
+					layout.wrap(c.out, String.valueOf(text.apply(c)), c.column);
+					c.column = 0;
+				});
+				return;
+			}
+			int width = format.isEmpty() ? 0 : width(format);
+			switch (f.kind) {
+				case MONEY:
+					steps.add(c -> {
+						int n = Money.write(c.out, number.applyAsLong(c));
+						layout.spaces(c.out, width - n);
+						c.column += Math.max(n, width);
+					});
+					break;
+				case NUMBER:
+					steps.add(c -> {
+						int n = layout.number(c.out, number.applyAsLong(c));
+						layout.spaces(c.out, width - n);
+						c.column += Math.max(n, width);
+					});
+					break;
+				default:
+					steps.add(c -> c.column += layout.pad(c.out, String.valueOf(text.apply(c)), width));
+			}
+		}
+
+		private int width(String format) { //Width of a :<n> or :<n>+ format
+			boolean wide = format.endsWith("+");
+			try {
+				int n = Integer.parseInt(wide ? format.substring(0, format.length() - 1) : format);
+				return wide ? n + Math.max(layout.getColumns() - 32, 0) : n;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid format :" + format + " (wrap, or a width such as 8 or 8+)");
+			}
+		}
+
+		private Field field(String name, String scope) { //Look up a field usable in <scope> (null outside @each)
+			switch (name) {
+				case "subtotal":
+					late = true;
+					return new Field(Kind.MONEY, c -> c.packet.subtotal);
+				case "shipping":
+					late = true;
+					return new Field(Kind.MONEY, c -> c.packet.shipping);
+				case "tax":
+					late = true;
+					return new Field(Kind.MONEY, c -> c.packet.tax);
+				case "total":
+					late = true;
+					return new Field(Kind.MONEY, c -> c.packet.total);
+			}
+			if ("line".equals(scope) && name.equals("line")) return new Field(c -> c.line);
+			if ("items".equals(scope)) {
+				switch (name) {
+					case "n":
+						return new Field(Kind.NUMBER, c -> c.n);
+					case "qty":
+						return new Field(Kind.NUMBER, c -> c.item.qty);
+					case "unit":
+						return new Field(Kind.MONEY, c -> Money.divide(c.item.price, c.item.qty));
+					case "price":
+						return new Field(Kind.MONEY, c -> c.item.price);
+					case "desc":
+						return new Field(c -> c.item.desc);
+					case "sku":
+						return new Field(c -> c.item.sku);
+				}
+			}
+			throw new IllegalArgumentException("Unknown field {" + name + "}" + (scope == null ? " (outside @each)" : ""));
+		}
+
+		private void literal(String s) { //Add constant text
+			layout.text(pending, s);
+			pendingColumns += s.length();
+		}
+
+		private void constant(int b) { //Add a constant control byte
+			pending.write(b);
+			if (b == 0x0d) {
+				pendingColumns = 0;
+				pendingCr = true;
+			}
+		}
+
+		private void flush(List<Step> steps) { //Make the constant bytes so far into one step
+			if (pending.size() == 0) return;
+			byte[] data = pending.toByteArray();
+			int columns = pendingColumns;
+			boolean cr = pendingCr;
+			steps.add(c -> {
+				c.out.write(data);
+				c.column = cr ? columns : c.column + columns;
+			});
+			pending.clear();
+			pendingColumns = 0;
+			pendingCr = false;
+		}
+	}
+
+	private static class Field { //A value taken from the packet (or the current item or line) when rendering, looked up when compiling
+		Kind kind;
+		ToLongFunction<Context> number; //For MONEY and NUMBER fields
+		Function<Context, String> text; //For TEXT fields
+
+		Field(Kind kind, ToLongFunction<Context> number) {
+			this.kind = kind;
+			this.number = number;
+		}
+
+		Field(Function<Context, String> text) {
+			this.kind = Kind.TEXT;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ *    RequestBody.java - Stream over the body of one HTTP request (Content-Length or chunked), ending where the body ends
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class RequestBody extends InputStream {
+	private InputStream in; //Connection stream - left at the start of the next request once the body has been read
+	private boolean chunked;
+	private long remaining; //Bytes left in the body (or in the current chunk)
+	private boolean started; //A chunk has been read (so the next size line comes after its CR LF)
+	private boolean ended;
+
+	public RequestBody(InputStream in, long length, boolean chunked) { //<length> is ignored for chunked bodies
+		this.in = in;
+		this.chunked = chunked;
+		this.remaining = chunked ? 0 : length;
+		this.ended = !chunked && length <= 0;
+	}
+
+	public int read() throws IOException {
+		if (!ready()) return -1;
+		int b = in.read();
+		if (b == -1) throw new EOFException("Connection closed in the middle of the request body");
+		remaining--;
+		return b;
+	}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!ready()) return -1;
+		int n = in.read(buf, off, (int) Math.min(len, remaining));
+		if (n == -1) throw new EOFException("Connection closed in the middle of the request body");
+		remaining -= n;
+		return n;
+	}
+
+	public void drain() throws IOException { //Skip whatever is left of the body, so the next request can be read
+		byte[] skip = new byte[512];
+		while (read(skip, 0, skip.length) != -1);
+	}
+
+	private boolean ready() throws IOException { //Check that there is more body to read, starting the next chunk if needed
+		if (ended) return false;
+		if (remaining > 0) return true;
+		if (!chunked) {
+			ended = true;
+			return false;
+		}
+		if (started) readLine(); //CR LF after the last chunk's data
+		started = true;
+		String size = readLine();
+		int semi = size.indexOf(';'); //Chunk extensions are ignored
+		try {
+			remaining = Long.parseLong((semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + size);
+		}
+		if (remaining < 0) throw new IOException("Invalid chunk size: " + size);
+		if (remaining == 0) { //Last chunk - skip any trailers
+			while (readLine().length() > 0);
+			ended = true;
+			return false;
+		}
+		return true;
+	}
+
+	private String readLine() throws IOException { //Read one line of chunk framing (without the CR LF)
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) throw new EOFException("Connection closed in the middle of the request body");
+			if (b != '\r') line.append((char) b);
+			if (line.length() > 1024) throw new IOException("Chunk header too long");
+		}
+		return line.toString();
+	}
+}
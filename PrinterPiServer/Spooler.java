@@ -0,0 +1,180 @@
+/*
+ *    Spooler.java - Bounded print queue with its own printing thread; jobs are released as soon as they are added
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+public class Spooler {
+	public enum Overflow { //What to do with a new job when the queue is full
+		REJECT, //Refuse the new job
+		DROP_OLDEST, //Discard the oldest waiting job to make room
+		BLOCK //Wait (up to the block timeout) for room
+	}
+
+	public interface PrintHandler { //Prints one job - called on the spooler thread
+		void print(PrintJob job) throws IOException;
+	}
+
+	private JobQueue queue;
+	private int capacity;
+	private Overflow overflow;
+	private int blockTimeout; //Longest wait for room with Overflow.BLOCK (ms)
+	private int gap; //Extra delay in between print jobs (ms)
+	private LongSupplier readyIn; //Time until the printer is ready for the next job (ms) - null to not wait
+	private PrintHandler handler;
+	private Thread worker;
+	private volatile boolean printing; //A job is being printed right now
+	private volatile long failedAt; //When the last job failed to print (System.currentTimeMillis, 0 if the last one printed)
+	private Consumer<PrintJob> onDrop; //Told about jobs discarded by Overflow.DROP_OLDEST
+
+	public Spooler(int capacity, Overflow overflow, int blockTimeout, int gap, long urgent, PrintHandler handler) { //Jobs due within <urgent> ms print ahead of higher priorities
+		if (capacity < 1)
+			throw new IllegalArgumentException("Queue capacity must be at least 1");
+		this.queue = new JobQueue(capacity, urgent);
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.blockTimeout = blockTimeout;
+		this.gap = gap;
+		this.handler = handler;
+	}
+
+	public static Spooler fromConfig(Config config, PrintHandler handler) { //Create a spooler with the spooler.* settings
+		Overflow overflow;
+		try {
+			overflow = Overflow.valueOf(config.getString("spooler.overflow", "REJECT").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Log.error("Spooler", "Unknown overflow policy, using REJECT");
+			overflow = Overflow.REJECT;
+		}
+		return new Spooler(config.getInt("spooler.capacity", 64), overflow, config.getInt("spooler.blockTimeout", 5000), config.getInt("spooler.gap", 0), config.getInt("spooler.urgent", 60000), handler);
+	}
+
+	public void setReadyCheck(LongSupplier readyIn) { //Wait for <readyIn> to reach 0 before each job, so the next job is picked as late as possible
+		this.readyIn = readyIn;
+	}
+
+	public void setDropListener(Consumer<PrintJob> onDrop) {
+		this.onDrop = onDrop;
+	}
+
+	public void start() { //Start the printing thread
+		worker = new Thread("Spooler") {
+			public void run() {
+				try {
+					while (true) {
+						waitReady();
+						release(queue.take()); //Sleeps until a job is added
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		worker.start();
+	}
+
+	public void shutdown() { //Stop the printing thread (jobs still waiting are left in the queue)
+		if (worker != null) worker.interrupt();
+	}
+
+	public boolean submit(PrintJob job) { //Add a job to the queue - returns false if it was rejected because the queue is full
+		return submit(job, true);
+	}
+
+	public boolean submit(PrintJob job, boolean wait) { //Add a job to the queue, only waiting for room (Overflow.BLOCK) if <wait> is set
+		job.queued = System.nanoTime();
+		if (!enqueue(job, wait)) return false;
+		Metrics.JOBS_QUEUED.inc();
+		return true;
+	}
+
+	private boolean enqueue(PrintJob job, boolean wait) {
+		if (queue.offer(job)) return true;
+		switch (overflow) {
+			case DROP_OLDEST:
+				while (!queue.offer(job)) {
+					PrintJob dropped = queue.dropLast();
+					if (dropped != null) {
+						Log.error("Spooler", "Print queue full, dropped the oldest print job of the lowest priority");
+						if (onDrop != null) onDrop.accept(dropped);
+					}
+				}
+				return true;
+			case BLOCK:
+				if (!wait) return false;
+				try {
+					return queue.offer(job, blockTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			default:
+				return false;
+		}
+	}
+
+	public int depth() { //Number of jobs waiting to be printed
+		return queue.size();
+	}
+
+	public int load() { //Jobs waiting plus the one printing (if any)
+		return queue.size() + (printing ? 1 : 0);
+	}
+
+	public int room() { //Jobs that can be added without any being rejected or waiting
+		return overflow == Overflow.DROP_OLDEST ? Integer.MAX_VALUE : queue.remainingCapacity();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public boolean failedWithin(long ms) { //Whether a job failed to print in the last <ms> ms (and none has printed since)
+		long at = failedAt;
+		return at != 0 && System.currentTimeMillis() - at < ms;
+	}
+
+	private void release(PrintJob job) throws InterruptedException { //Print one job
+		printing = true;
+		long start = System.nanoTime();
+		Metrics.QUEUE_WAIT.observe(start - job.queued);
+		try {
+			Log.info("Spooler", "Releasing print job...");
+			handler.print(job);
+			Metrics.JOBS_PRINTED.inc();
+			failedAt = 0;
+		} catch (IOException | RuntimeException e) { //Keep the printing thread alive whatever happens to one job
+			Log.error("Spooler", "Error in releasing print job. " + e.toString());
+			Metrics.PRINT_ERRORS.inc();
+			failedAt = System.currentTimeMillis();
+		} finally {
+			Metrics.PRINT.observe(System.nanoTime() - start);
+			printing = false;
+		}
+		Log.info("Spooler", "Print job complete. Current print queue size: " + depth());
+		if (gap > 0) Thread.sleep(gap); //Delay in between print jobs
+	}
+
+	private void waitReady() throws InterruptedException { //Wait until the printer has finished what it has been sent
+		if (readyIn == null) return;
+		long wait;
+		while ((wait = readyIn.getAsLong()) > 0) Thread.sleep(wait);
+	}
+}
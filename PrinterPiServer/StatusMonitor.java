@@ -0,0 +1,184 @@
+/*
+ *    StatusMonitor.java - Asks the printer for its status (paper, cover, errors) and whether it has printed everything sent to it
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class StatusMonitor {
+	/*
+		Two kinds of status request are used:
+		- Real-time status (DLE EOT n) is answered straight away, even while the printer is offline or its buffer is full. The reply is
+		  one byte of the form 0xx1xx10, so it can be told apart from the other kind.
+		- Transmit status (GS r 1) is only answered once the printer has processed everything sent before it, so its reply (bit 4 clear)
+		  shows the printer has caught up.
+		The status is polled every <interval> ms on one thread, and all replies are read by another, so a printer that stops answering
+		holds up nothing but the status. Requests go through the Transmitter, which only writes them in between whole commands.
+	*/
+	public enum State {
+		OK,
+		PAPER_OUT,
+		COVER_OPEN,
+		ERROR, //Cutter jam, head too hot, etc.
+		NO_REPLY //Turned off or unplugged
+	}
+
+	private static final byte[] OFFLINE_CAUSE = {0x10, 0x04, 2}; //DLE EOT 2
+	private static final byte[] PAPER_SENSOR = {0x10, 0x04, 4}; //DLE EOT 4
+	private static final byte[] TRANSMIT_STATUS = {0x1d, 0x72, 1}; //GS r 1
+
+	private Transmitter transmitter;
+	private InputStream in;
+	private int interval; //Time between polls (ms)
+	private int timeout; //Longest wait for a real-time reply (ms)
+	private BlockingQueue<Integer> replies = new ArrayBlockingQueue<Integer>(16); //Real-time replies not yet read
+	private long caughtUp; //Number of transmit status replies received
+	private volatile State state = State.OK;
+	private Consumer<State> listener;
+	private Thread poller;
+	private Thread reader;
+	private volatile boolean held; //Polling paused (see hold)
+
+	public StatusMonitor(Transmitter transmitter, InputStream in, int interval, int timeout) {
+		this.transmitter = transmitter;
+		this.in = in;
+		this.interval = Math.max(interval, 50);
+		this.timeout = timeout;
+	}
+
+	public static StatusMonitor fromConfig(Transmitter transmitter, InputStream in, Config config) { //Create a monitor with the printer.statusInterval and printer.statusTimeout settings
+		return new StatusMonitor(transmitter, in, config.getInt("printer.statusInterval", 1000), config.getInt("printer.statusTimeout", 500));
+	}
+
+	public void setListener(Consumer<State> listener) { //Told about each change of state (on the polling thread)
+		this.listener = listener;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public void start() {
+		reader = new Thread("Status reader") {
+			public void run() {
+				try {
+					int b;
+					while ((b = in.read()) >= 0) {
+						if ((b & 0x93) == 0x12) { //Real-time status
+							if (!replies.offer(b)) { //Reply to a request that timed out long ago - make room
+								replies.poll();
+								replies.offer(b);
+							}
+						} else if ((b & 0x90) == 0) { //Transmit status
+							synchronized (StatusMonitor.this) {
+								caughtUp++;
+								StatusMonitor.this.notifyAll();
+							}
+						}
+					}
+				} catch (IOException e) {
+					Log.error("StatusMonitor", "Could not read from the printer. " + e.toString());
+				}
+			}
+		};
+		poller = new Thread("Status") {
+			public void run() {
+				try {
+					while (true) {
+						if (!held) update(poll());
+						Thread.sleep(interval);
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		reader.setDaemon(true);
+		poller.setDaemon(true);
+		reader.start();
+		poller.start();
+	}
+
+	public void hold(boolean held) { //Pause (or resume) polling, such as while the printer writes its NV memory and may not answer
+		this.held = held;
+	}
+
+	public void stop() {
+		if (poller != null) poller.interrupt();
+	}
+
+	public synchronized void awaitOk() throws InterruptedException { //Wait until the printer is fit to print
+		while (state != State.OK) wait();
+	}
+
+	public boolean awaitCaughtUp(long wait) throws InterruptedException, IOException { //Wait up to <wait> ms for the printer to process everything sent so far - returns false if it did not (or a fault was seen)
+		long before;
+		synchronized (this) {
+			before = caughtUp;
+		}
+		if (!transmitter.query(TRANSMIT_STATUS)) return false;
+		long end = System.currentTimeMillis() + wait;
+		synchronized (this) {
+			long left;
+			while (caughtUp == before && state == State.OK && (left = end - System.currentTimeMillis()) > 0) wait(left);
+			return caughtUp != before;
+		}
+	}
+
+	private State poll() throws InterruptedException { //Ask for the printer's status
+		try {
+			Integer cause = ask(OFFLINE_CAUSE);
+			if (cause == null) return State.NO_REPLY;
+			if (cause < 0) return state; //Could not ask - try again next time
+			if ((cause & 0x04) != 0) return State.COVER_OPEN;
+			if ((cause & 0x20) != 0) return State.PAPER_OUT; //Stopped at the end of the paper
+			if ((cause & 0x40) != 0) return State.ERROR;
+			Integer paper = ask(PAPER_SENSOR);
+			if (paper == null) return State.NO_REPLY;
+			if (paper < 0) return state;
+			if ((paper & 0x60) != 0) return State.PAPER_OUT;
+			return State.OK;
+		} catch (IOException e) {
+			return State.NO_REPLY;
+		}
+	}
+
+	private Integer ask(byte[] request) throws IOException, InterruptedException { //Send a real-time status request, returning the reply (null if none came, -1 if it could not be sent)
+		replies.clear(); //Late replies to earlier requests
+		if (!transmitter.query(request)) return -1; //In the middle of a command
+		return replies.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	private void update(State now) {
+		if (now == state) return;
+		if (now == State.OK) Log.info("StatusMonitor", "Printer ready");
+		else Log.error("StatusMonitor", "Printer not ready: " + now);
+		synchronized (this) {
+			state = now;
+			notifyAll();
+		}
+		if (listener != null) listener.accept(now);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ *    SysfsGpio.java - GPIO backend using the sysfs interface, keeping each pin's value file open
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+public class SysfsGpio implements GpioBackend {
+	/*
+		The value file of each pin is opened once in setup and then read and written at position 0 (pread/pwrite), so toggling a pin is
+		a single system call instead of an open, write and close each time.
+	*/
+	private static final byte[] LOW = {'0'};
+	private static final byte[] HIGH = {'1'};
+
+	private File root; //Normally /sys/class/gpio
+	private FileChannel[] values = new FileChannel[Hardware.PIN_COUNT]; //Open value file of each pin, by BCM number
+
+	public SysfsGpio(File root) {
+		this.root = root;
+	}
+
+	public SysfsGpio() {
+		this(new File("/sys/class/gpio"));
+	}
+
+	public synchronized void setup(int pin, int direction) throws IOException {
+		File dir = new File(root, "gpio" + pin);
+		if (!dir.exists()) { //Only export if the pin doesn't exist
+			writeFile(new File(root, "export"), "" + pin);
+		}
+		writeFile(new File(dir, "direction"), direction == 0 ? "in" : "out");
+		if (values[pin] != null) values[pin].close();
+		if (direction == 0) {
+			values[pin] = FileChannel.open(new File(dir, "value").toPath(), StandardOpenOption.READ);
+		} else {
+			values[pin] = FileChannel.open(new File(dir, "value").toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+
+	public void write(int pin, int level) throws IOException {
+		channel(pin).write(ByteBuffer.wrap(level == 0 ? LOW : HIGH), 0);
+	}
+
+	public int read(int pin) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(1);
+		if (channel(pin).read(buf, 0) != 1)
+			throw new IOException("Could not read GPIO " + pin);
+		return buf.get(0) == '0' ? 0 : 1;
+	}
+
+	public synchronized void release(int pin) {
+		try {
+			if (values[pin] != null) values[pin].close();
+			values[pin] = null;
+			writeFile(new File(root, "unexport"), "" + pin);
+		} catch (IOException e) {} //Nothing to do
+	}
+
+	public synchronized void close() {
+		for (int pin=0; pin<values.length; pin++) {
+			if (values[pin] != null) release(pin);
+		}
+	}
+
+	private FileChannel channel(int pin) throws IOException {
+		FileChannel c = values[pin];
+		if (c == null) throw new IOException("GPIO " + pin + " has not been set up");
+		return c;
+	}
+
+	private static void writeFile(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.WRITE);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ *    TcpSink.java - Printer output to a network printer's raw port (usually 9100)
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class TcpSink extends OutputStream implements OutputSink {
+	/*
+		The connection is only made when something is first written or read (so a printer that is off when the server starts does not
+		stop it starting), and each attempt gives up after <timeout> ms. If the connection fails it is closed and made again: a write
+		that fails is tried once more on a new connection before the error is passed on, and the status reader keeps trying to
+		reconnect (every RETRY ms) until the sink is closed.
+	*/
+	private static final int RETRY = 1000; //Time between attempts to reconnect for reading (ms)
+
+	private String host;
+	private int port;
+	private int timeout; //Longest wait for a connection (ms)
+	private boolean read;
+	private Socket socket; //null until connected (and after a failure)
+	private volatile boolean closed;
+
+	public TcpSink(String address, boolean read, int timeout) { //Print to <address> (host[:port], port 9100 if left out)
+		int colon = address.lastIndexOf(':');
+		this.host = colon < 0 ? address : address.substring(0, colon);
+		this.port = colon < 0 ? 9100 : Integer.parseInt(address.substring(colon+1));
+		this.read = read;
+		this.timeout = timeout;
+	}
+
+	public OutputStream output() {
+		return this;
+	}
+
+	public InputStream input() {
+		if (!read) return null;
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException { //Waits through reconnecting - only ends once the sink is closed
+				while (!closed) {
+					Socket s = null;
+					try {
+						s = connect();
+						int n = s.getInputStream().read(b, off, len);
+						if (n >= 0) return n;
+					} catch (IOException e) {}
+					if (s != null) drop(s); //Closed by the printer, or failed
+					try {
+						Thread.sleep(RETRY);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while reconnecting to " + host + ":" + port);
+					}
+				}
+				return -1;
+			}
+		};
+	}
+
+	public boolean flowControlled() { //TCP has its own flow control
+		return true;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		Socket s = connect();
+		try {
+			s.getOutputStream().write(b, off, len);
+		} catch (IOException e) { //Connection dropped (such as the printer being turned off and on) - try once on a new one
+			drop(s);
+			Log.info("TcpSink", "Reconnecting to " + host + ":" + port + " after " + e.toString());
+			s = connect();
+			try {
+				s.getOutputStream().write(b, off, len);
+			} catch (IOException again) {
+				drop(s);
+				throw again;
+			}
+		}
+	}
+
+	public void flush() throws IOException {
+		Socket s;
+		synchronized (this) {
+			s = socket;
+		}
+		if (s != null) s.getOutputStream().flush();
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		drop(null);
+	}
+
+	private synchronized Socket connect() throws IOException { //The current connection, connecting first if there is none
+		if (closed)
+			throw new IOException("Printer connection closed");
+		if (socket == null) {
+			Socket s = new Socket();
+			try {
+				s.connect(new InetSocketAddress(host, port), timeout);
+			} catch (IOException e) {
+				s.close();
+				throw new IOException("Could not connect to " + host + ":" + port + ". " + e.toString());
+			}
+			socket = s;
+		}
+		return socket;
+	}
+
+	private synchronized void drop(Socket s) { //Close the connection if it is still <s> (any connection if null), so the next use reconnects
+		if (socket == null || (s != null && s != socket)) return;
+		try {
+			socket.close();
+		} catch (IOException e) {} //Being discarded anyway
+		socket = null;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *    TextLayout.java - Writes receipt text into a ReceiptBuffer: encoding it for the printer's character set, wrapping it to the paper width and padding columns
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class TextLayout {
+	/*
+		Characters per line for each paper width and font (font A is 12x24 dots, font B 9x17):
+
+		Paper    Font A    Font B
+		58 mm    32        42
+		80 mm    48        64
+
+		Text is encoded with a table built once from the printer's (single byte) character set, so writing text creates no objects.
+		Characters the printer does not have are printed as '?'.
+	*/
+	public static final TextLayout DEFAULT = new TextLayout(32, false, Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1); //58 mm, font A, code page 437 (what most printers start with)
+
+	private int columns; //Characters per line
+	private boolean fontB; //Use the smaller font B
+	private byte[] table = new byte[65536]; //Printer byte for each character
+
+	public TextLayout(int columns, boolean fontB, Charset charset) {
+		if (columns < 8)
+			throw new IllegalArgumentException("A line must have at least 8 characters");
+		this.columns = columns;
+		this.fontB = fontB;
+		Arrays.fill(table, (byte) '?');
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+		for (int b=255; b>=0; b--) { //Lowest byte wins where a character appears twice
+			try {
+				CharBuffer c = decoder.decode(ByteBuffer.wrap(new byte[] {(byte) b}));
+				if (c.length() == 1) table[c.get(0)] = (byte) b;
+			} catch (CharacterCodingException e) {} //No character for this byte
+		}
+	}
+
+	public static TextLayout fromConfig(Config config) { //Create the layout set by layout.paper, layout.font, layout.columns and layout.charset
+		boolean fontB = config.getString("layout.font", "A").equalsIgnoreCase("B");
+		boolean wide = config.getInt("layout.paper", 58) >= 80;
+		int columns = config.getInt("layout.columns", wide ? (fontB ? 64 : 48) : (fontB ? 42 : 32));
+		try {
+			return new TextLayout(columns, fontB, Charset.forName(config.getString("layout.charset", "IBM437")));
+		} catch (IllegalArgumentException e) { //Unknown character set or width
+			Log.error("TextLayout", e.getMessage() + ", using the default layout");
+			return DEFAULT;
+		}
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public void style(ReceiptBuffer out, int code) { //Set the style (ESC !), keeping the selected font
+		out.style(fontB ? code | 0x01 : code);
+	}
+
+	public void text(ReceiptBuffer out, String s) { //Write <s> in the printer's character set
+		text(out, s, 0, s.length());
+	}
+
+	public void text(ReceiptBuffer out, String s, int from, int to) {
+		for (int i=from; i<to; i++) out.write(table[s.charAt(i)]);
+	}
+
+	public void wrap(ReceiptBuffer out, String s, int used) { //Write <s> split at spaces into lines of the paper width (the first line already has <used> characters), each ending with a CR - words longer than a line are broken
+		int pos = 0;
+		int end = s.length();
+		int width = Math.max(columns - used, 1);
+		while (end - pos > width) {
+			int next = s.lastIndexOf(' ', pos + width - 1) + 1; //Keep the space at the end of the line
+			if (next <= pos) next = pos + width; //No space on this line - break the word
+			text(out, s, pos, next);
+			out.cr();
+			pos = next;
+			width = columns;
+		}
+		text(out, s, pos, end); //Write the remainder
+		out.cr();
+	}
+
+	public int pad(ReceiptBuffer out, String s, int width) { //Write <s> followed by spaces up to <width> characters (longer text is not cut) - returns the number of characters written
+		text(out, s);
+		spaces(out, width - s.length());
+		return Math.max(s.length(), width);
+	}
+
+	public void spaces(ReceiptBuffer out, int n) { //Add <n> spaces (if more than 0)
+		for (int i=0; i<n; i++) out.write(' ');
+	}
+
+	public int number(ReceiptBuffer out, long value) { //Write <value> in decimal, returning the number of characters written
+		int n = 1;
+		if (value < 0) {
+			out.write('-');
+			value = -value;
+			n++;
+		}
+		long div = 1;
+		while (div <= value / 10) {
+			div *= 10;
+			n++;
+		}
+		for (; div > 0; div /= 10) out.write((int) ('0' + value / div % 10));
+		return n;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ *    Transmitter.java - Streams rendered printer data to the printer, pacing the writes to the serial line speed and how fast the printer can print
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Transmitter {
+	/*
+		Pacing model: the data is cut into chunks at line ends (and raster rows) and the time the printer needs for each chunk is estimated
+		from the lines and raster rows in it. A chunk is only written once the data still waiting in the printer's buffer plus the chunk fits
+		in the buffer, so the printer is kept busy without overflowing. With hardware flow control the kernel holds back writes instead,
+		so chunks are written as fast as the serial line allows.
+
+		Status requests (see StatusMonitor) share the connection, so they are only written while <between> is set: after a chunk ending at
+		a line end, and never inside an image or other long command. Commands carrying image data (GS v 0, FS q) are found by their length
+		and sent whole, so bytes of the image are never mistaken for line ends or other commands.
+	*/
+	private static final int DOTS_PER_MM = 8; //203 dpi print head
+
+	interface Clock { //Time source for the pacing (replaced in tests so delays can be checked without waiting)
+		long nanoTime();
+
+		void sleep(long nanos) throws InterruptedException;
+	}
+
+	private static final Clock SYSTEM = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		public void sleep(long nanos) throws InterruptedException {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		}
+	};
+
+	private OutputStream out;
+	private int baud; //Serial line speed (bits per second, 10 bits per byte)
+	private int bufferSize; //Printer receive buffer (bytes)
+	private long rowNanos; //Time for the printer to feed one dot row
+	private int lineDots; //Dot rows fed by one line of normal size text
+	private int chunkSize; //Most bytes written at once
+	private boolean hardwareFlow; //Printer controls the flow with RTS/CTS (set with stty crtscts)
+
+	private ArrayDeque<long[]> pending = new ArrayDeque<long[]>(); //Chunks the printer has not finished: {bytes, finish time}
+	private long buffered; //Bytes in pending
+	private long busyUntil; //Time the printer will finish everything sent so far (clock.nanoTime)
+	private int textHeight = 1; //Current text height multiplier (ESC ! double height)
+	private ReentrantLock wire = new ReentrantLock(); //Held while writing, so status requests are not written in the middle of a chunk
+	private volatile boolean between = true; //The last byte written ended a command
+	private Clock clock = SYSTEM;
+
+	public Transmitter(OutputStream out, int baud, int bufferSize, int speed, int lineDots, int chunkSize, boolean hardwareFlow) { //<speed> is the paper speed (mm/s)
+		if (baud < 1 || bufferSize < 1 || speed < 1 || chunkSize < 1)
+			throw new IllegalArgumentException("Baud rate, buffer size, speed and chunk size must all be at least 1");
+		this.out = out;
+		this.baud = baud;
+		this.bufferSize = bufferSize;
+		this.rowNanos = 1000000000L / ((long) speed * DOTS_PER_MM);
+		this.lineDots = lineDots;
+		this.chunkSize = Math.min(chunkSize, bufferSize);
+		this.hardwareFlow = hardwareFlow;
+	}
+
+	public static Transmitter fromConfig(OutputStream out, Config config, boolean flowControlled) { //Create a transmitter with the serial.* and printer.* settings (<flowControlled> if the connection holds back writes itself)
+		return new Transmitter(out, config.getInt("serial.baud", 115200), config.getInt("printer.bufferSize", 4096), config.getInt("printer.speed", 50),
+				config.getInt("printer.lineDots", 32), config.getInt("serial.chunkSize", 256), flowControlled || config.getString("serial.flowControl", "none").equalsIgnoreCase("hardware"));
+	}
+
+	synchronized void setClock(Clock clock) { //Use <clock> instead of System.nanoTime and Thread.sleep
+		this.clock = clock;
+		busyUntil = clock.nanoTime();
+	}
+
+	public synchronized void send(byte[] data) throws IOException { //Write all of <data> to the printer
+		try {
+			int off = 0;
+			while (off < data.length) {
+				int end = off;
+				long rows = 0;
+				while (end < data.length && end - off < chunkSize) { //Take whole commands until a line end or the chunk is full
+					int b = data[end] & 0xff;
+					if (b == 0x1d && end + 7 < data.length && data[end+1] == 0x76 && data[end+2] == 0x30) { //GS v 0 raster image - sent a few rows at a time
+						int width = (data[end+4] & 0xff) | (data[end+5] & 0xff) << 8;
+						int height = (data[end+6] & 0xff) | (data[end+7] & 0xff) << 8;
+						if (end > off) break; //Start the image in its own chunk
+						end = sendRaster(data, end, width, height);
+						rows = -1;
+						break;
+					}
+					if (b == 0x1c && end + 6 < data.length && data[end+1] == 0x71) { //FS q NV image store - sent as one command
+						if (end > off) break;
+						end = sendBlock(data, end, storeLength(data, end));
+						rows = -1;
+						break;
+					}
+					end += commandLength(data, end);
+					if (b == 0x0a || b == 0x0d) {
+						rows += (long) lineDots * textHeight;
+						break;
+					}
+				}
+				if (rows >= 0) transmit(data, off, Math.min(end, data.length) - off, rows, end >= data.length || (data[end-1] == 0x0a || data[end-1] == 0x0d));
+				off = Math.min(end, data.length);
+			}
+			wire.lock();
+			try {
+				out.flush();
+			} finally {
+				wire.unlock();
+			}
+			Metrics.BYTES_SENT.add(data.length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while sending to the printer");
+		}
+	}
+
+	private int sendRaster(byte[] data, int start, int width, int height) throws IOException, InterruptedException { //Send the GS v 0 image at <start> in chunks of whole rows, returning the index after it
+		int end = Math.min(data.length, start + 8 + width * height);
+		int rowsPerChunk = Math.max(1, chunkSize / Math.max(1, width));
+		transmit(data, start, 8, 0, false); //Command header
+		for (int off=start+8, row=0; off<end; row+=rowsPerChunk) {
+			int len = Math.min(rowsPerChunk * width, end - off);
+			transmit(data, off, len, Math.min(rowsPerChunk, height - row), off + len >= end);
+			off += len;
+		}
+		return end;
+	}
+
+	private int sendBlock(byte[] data, int start, int len) throws IOException, InterruptedException { //Send the <len> byte command at <start> in chunks, returning the index after it
+		int end = start + len;
+		for (int off=start; off<end; off+=chunkSize) {
+			transmit(data, off, Math.min(chunkSize, end - off), 0, off + chunkSize >= end);
+		}
+		return end;
+	}
+
+	private static int storeLength(byte[] data, int start) { //Length of the FS q n command at <start>: n images, each its width (bytes) and height (groups of 8 dots) then its data
+		int i = start + 3;
+		for (int n = data[start+2] & 0xff; n > 0 && i + 4 <= data.length; n--) {
+			int width = (data[i] & 0xff) | (data[i+1] & 0xff) << 8;
+			int height = (data[i+2] & 0xff) | (data[i+3] & 0xff) << 8;
+			i += 4 + width * height * 8;
+		}
+		return Math.min(i, data.length) - start;
+	}
+
+	private int commandLength(byte[] data, int i) { //Length of the command starting at <i> (tracking the text height so line feeds are timed correctly)
+		int b = data[i] & 0xff;
+		if (b == 0x1b && i + 1 < data.length) {
+			switch (data[i+1]) {
+				case 0x21: //ESC ! n - print mode
+					if (i + 2 < data.length) textHeight = (data[i+2] & 0x10) != 0 ? 2 : 1;
+					return 3;
+				case 0x61: //ESC a n - justification
+					return 3;
+				case 0x40: //ESC @ - reset
+					textHeight = 1;
+					return 2;
+				default:
+					return 2;
+			}
+		}
+		if (b == 0x1c && i + 1 < data.length && data[i+1] == 0x70) return 4; //FS p n m - print NV image
+		return 1;
+	}
+
+	private void transmit(byte[] data, int off, int len, long rows, boolean ends) throws IOException, InterruptedException { //Write one chunk once there is room for it in the printer's buffer (<ends> if it ends a command)
+		if (!hardwareFlow) {
+			waitForRoom(len);
+		}
+		wire.lock();
+		try {
+			between = false;
+			out.write(data, off, len);
+			between = ends;
+		} finally {
+			wire.unlock();
+		}
+		long now = clock.nanoTime();
+		long arrived = now + len * 10L * 1000000000L / baud; //Time for the chunk to go out over the serial line
+		busyUntil = Math.max(busyUntil, arrived) + rows * rowNanos;
+		pending.add(new long[]{len, busyUntil});
+		buffered += len;
+	}
+
+	private void waitForRoom(int len) throws InterruptedException { //Sleep until the printer has printed enough for <len> more bytes to fit in its buffer
+		while (true) {
+			long now = clock.nanoTime();
+			while (!pending.isEmpty() && pending.peek()[1] <= now) {
+				buffered -= pending.poll()[0];
+			}
+			if (buffered + len <= bufferSize || pending.isEmpty()) return;
+			long wait = pending.peek()[1] - now;
+			clock.sleep(wait);
+		}
+	}
+
+	public boolean query(byte[] request) throws IOException { //Write a status request if no command is partly written - returns false if it was not sent
+		wire.lock();
+		try {
+			if (!between) return false;
+			out.write(request);
+			out.flush();
+			return true;
+		} finally {
+			wire.unlock();
+		}
+	}
+
+	public synchronized void caughtUp() { //The printer has reported that it has printed everything sent so far
+		pending.clear();
+		buffered = 0;
+		busyUntil = clock.nanoTime();
+	}
+
+	public synchronized long idleIn() { //Estimated time until the printer has finished everything sent (ms)
+		return Math.max(0, (busyUntil - clock.nanoTime()) / 1000000);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *    ServerBridge.java - Gives the benchmarks (which cannot be in the default package) access to the server classes
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import printerpi.bench.Server;
+
+public class ServerBridge implements Server {
+	private Logo logo = Logo.EMPTY;
+
+	public byte[] body(int items) {
+		StringBuilder body = new StringBuilder();
+		body.append("To: Jane Doe/n/123 Some Street/n/Springfield, OR 97477\n");
+		body.append("From: PolarPiBerry/n/1 Main Street/n/Portland, OR 97201\n");
+		body.append("Subtotal: $").append(items * 12).append(".99\n");
+		body.append("Shipping: $4.50\n");
+		body.append("Tax: $1.25\n");
+		for (int i=0; i<items; i++) {
+			body.append("Item: Widget number ").append(i).append(" with a description long enough to wrap~SKU-").append(i).append("~").append(i % 3 + 1).append("~$12.99\n");
+		}
+		body.append("Message: Thank you for your order!/n/Please come again\n`");
+		return body.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public Object parse(byte[] body) throws IOException {
+		return new PacketParser(new ByteArrayInputStream(body)).parse(body.length);
+	}
+
+	public Object packet(int items) {
+		try {
+			return parse(body(items));
+		} catch (IOException e) { //Not thrown by a byte array
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void useLogo(int width, int height, boolean stored) {
+		if (width == 0 || height == 0) {
+			logo = Logo.EMPTY;
+		} else {
+			byte[] bits = new byte[width / 8 * height];
+			new Random(1).nextBytes(bits); //Dithered photos look like noise
+			logo = Logo.fromRaster(bits, width / 8, height, 0, 0);
+			if (stored) logo = logo.asStored();
+		}
+		ReceiptRenderer.setLogo(logo);
+	}
+
+	public byte[] render(Object packet) {
+		return ReceiptRenderer.render((Packet) packet);
+	}
+
+	public byte[] logo() {
+		ReceiptBuffer out = new ReceiptBuffer();
+		logo.writeTo(out);
+		return out.toByteArray();
+	}
+
+	public byte[] storeCommand() {
+		return logo.storeCommand();
+	}
+
+	public Object transmitter(OutputStream sink) {
+		return new Transmitter(sink, 115200, 4096, 50, 32, 256, true);
+	}
+
+	public void send(Object transmitter, byte[] data) throws IOException {
+		((Transmitter) transmitter).send(data);
+	}
+
+	public Output gpio(File root, int pin) throws IOException {
+		Hardware hardware = new Hardware(new SysfsGpio(root));
+		Pin out = new Pin(pin, 1);
+		if (!hardware.setup(out))
+			throw new IOException("Could not set up GPIO " + pin + " in " + root);
+		return new Output() {
+			public boolean write(int level) {
+				return hardware.write(out, level);
+			}
+
+			public void close() {
+				hardware.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ *    GpioBenchmark.java - Time to toggle a GPIO output (the status LED) through Hardware and SysfsGpio, against a temporary stand-in for /sys/class/gpio
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package printerpi.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GpioBenchmark {
+	private static final int PIN = 4; //Status LED
+
+	private File root;
+	private Server.Output led;
+	private int level;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("gpio").toFile();
+		File pin = new File(root, "gpio" + PIN); //As if already exported
+		pin.mkdir();
+		for (File f: new File[] {new File(root, "export"), new File(root, "unexport"), new File(pin, "direction"), new File(pin, "value")}) {
+			Files.write(f.toPath(), new byte[] {'0'});
+		}
+		led = Server.load().gpio(root, PIN);
+	}
+
+	@TearDown
+	public void tearDown() {
+		led.close();
+		for (File dir: new File[] {new File(root, "gpio" + PIN), root}) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f: files) f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Benchmark
+	public boolean toggle() {
+		level ^= 1;
+		return led.write(level);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ *    LogoBenchmark.java - Time to add the logo to a receipt, send it to the printer and build the command storing it in NV memory
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package printerpi.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogoBenchmark {
+	@Param({"384"}) //Full width of 58 mm paper (dots)
+	public int width;
+
+	@Param({"120", "480"})
+	public int height;
+
+	private Server server;
+	private byte[] command;
+	private NullSink sink;
+	private Object transmitter;
+
+	@Setup
+	public void setup() {
+		server = Server.load();
+		server.useLogo(width, height, false);
+		command = server.logo();
+		sink = new NullSink();
+		transmitter = server.transmitter(sink);
+	}
+
+	@Benchmark
+	public byte[] emit() { //Copy the GS v 0 command into a receipt
+		return server.logo();
+	}
+
+	@Benchmark
+	public long send() throws IOException { //Cut it into chunks of whole rows and write them
+		server.send(transmitter, command);
+		return sink.written;
+	}
+
+	@Benchmark
+	public byte[] storeCommand() { //Convert it to the column format of FS q
+		return server.storeCommand();
+	}
+}
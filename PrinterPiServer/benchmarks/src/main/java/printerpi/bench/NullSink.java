@@ -0,0 +1,34 @@
+/*
+ *    NullSink.java - OutputStream that throws the data away, standing in for the printer
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package printerpi.bench;
+
+import java.io.OutputStream;
+
+public class NullSink extends OutputStream {
+	public long written; //Bytes written (read by the benchmarks so the writes are not optimised away)
+
+	public void write(int b) {
+		written++;
+	}
+
+	public void write(byte[] data, int off, int len) {
+		written += len;
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ *    RenderBenchmark.java - Time to render a receipt, and to render it and send it through the Transmitter to a sink that throws it away
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package printerpi.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+	@Param({"1", "10", "100", "1000"})
+	public int items;
+
+	@Param({"none", "raster", "stored"}) //No logo, a 384 x 120 dot logo sent with every receipt, or the same logo printed from NV memory
+	public String logo;
+
+	private Server server;
+	private Object packet;
+	private NullSink sink;
+	private Object transmitter;
+
+	@Setup
+	public void setup() {
+		server = Server.load();
+		server.useLogo(logo.equals("none") ? 0 : 384, 120, logo.equals("stored"));
+		packet = server.packet(items);
+		sink = new NullSink();
+		transmitter = server.transmitter(sink);
+	}
+
+	@Benchmark
+	public byte[] render() {
+		return server.render(packet);
+	}
+
+	@Benchmark
+	public long renderAndSend() throws IOException {
+		server.send(transmitter, server.render(packet));
+		return sink.written;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *    Server.java - The parts of PrinterPiServer the benchmarks use, reached through ServerBridge
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package printerpi.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface Server {
+	/*
+		The server classes are in the default package, which JMH does not allow benchmarks in and which no other package can refer to.
+		ServerBridge (in the default package) implements this interface and is loaded by name, so the benchmarks only make interface
+		calls, which the JIT inlines. Server objects (Packet, Transmitter) are passed around as Object.
+	*/
+	static Server load() { //Create the bridge
+		try {
+			return (Server) Class.forName("ServerBridge").newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("ServerBridge not found", e);
+		}
+	}
+
+	byte[] body(int items); //Text request body of a packing list with <items> items
+
+	Object parse(byte[] body) throws IOException; //Parse <body> into a Packet
+
+	Object packet(int items); //Packet with <items> items
+
+	void useLogo(int width, int height, boolean stored); //Give receipts a <width> x <height> dot logo (printed from NV memory if <stored>, or 0 x 0 for none)
+
+	byte[] render(Object packet); //Render a Packet into printer data
+
+	byte[] logo(); //Printer data the logo adds to each receipt
+
+	byte[] storeCommand(); //FS q command storing the logo in NV memory
+
+	Object transmitter(OutputStream sink); //Transmitter writing to <sink> without pacing (as with hardware flow control)
+
+	void send(Object transmitter, byte[] data) throws IOException;
+
+	Output gpio(File root, int pin) throws IOException; //<pin> set up as an output through Hardware, using the sysfs stand-in at <root>
+
+	interface Output extends AutoCloseable {
+		boolean write(int level);
+
+		void close();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ *    JournalTest.java - Jobs replayed from the journal after a shutdown or a crash, and write failures reported to the caller
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JournalTest {
+	@TempDir
+	File dir;
+
+	private static Packet packet(String to) {
+		Packet p = new Packet();
+		p.to = new String[] {to};
+		p.from = new String[] {"PolarPiBerry"};
+		p.subtotal = 1299;
+		p.total = 1299;
+		p.items.add(new Item("Widget", "W1", 1, 1299));
+		p.messages = new String[] {"Thank you"};
+		return p;
+	}
+
+	private static PrintJob job(long id) {
+		return new PrintJob(id, packet("Customer " + id), new byte[0]);
+	}
+
+	private static List<Long> ids(List<PrintJob> jobs) {
+		List<Long> ids = new ArrayList<Long>();
+		for (PrintJob job: jobs) ids.add(job.id);
+		return ids;
+	}
+
+	@Test
+	public void unfinishedJobsAreReplayed() throws IOException {
+		File file = new File(dir, "test.journal");
+		Journal journal = new Journal(file, true, 1048576);
+		journal.open();
+		journal.queued(Arrays.asList(job(1), job(2), job(3)));
+		journal.done(2);
+		journal.close();
+
+		List<PrintJob> waiting = new Journal(file, true, 1048576).open();
+		assertEquals(Arrays.asList(1L, 3L), ids(waiting));
+		assertEquals("Customer 3", waiting.get(1).packet.to[0]);
+	}
+
+	@Test
+	public void recordCutShortByACrashIsDropped() throws IOException {
+		File file = new File(dir, "test.journal");
+		Journal journal = new Journal(file, true, 1048576);
+		journal.open();
+		journal.queued(Arrays.asList(job(1), job(2)));
+		journal.queued(job(3));
+		journal.close();
+		try (RandomAccessFile f = new RandomAccessFile(file, "rw")) { //The writer was killed partway through the last record
+			f.setLength(f.length() - 5);
+		}
+
+		Journal reopened = new Journal(file, true, 1048576);
+		assertEquals(Arrays.asList(1L, 2L), ids(reopened.open()));
+		reopened.queued(job(4)); //Written after the records kept, not after the part dropped
+		reopened.close();
+		assertEquals(Arrays.asList(1L, 2L, 4L), ids(new Journal(file, true, 1048576).open()));
+	}
+
+	@Test
+	public void failedWriteIsNotAcknowledged() throws Exception {
+		File file = new File(dir, "test.journal");
+		Journal journal = new Journal(file, true, 1048576);
+		journal.open();
+		journal.queued(job(1));
+		Field channel = Journal.class.getDeclaredField("channel");
+		channel.setAccessible(true);
+		((FileChannel) channel.get(journal)).close(); //As if the SD card had gone away
+		assertThrows(IOException.class, () -> journal.queued(Arrays.asList(job(2), job(3))));
+		journal.close();
+
+		assertEquals(Arrays.asList(1L), ids(new Journal(file, true, 1048576).open()));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ *    ReceiptGoldenTest.java - A packing list rendered and printed to a memory: sink, compared byte for byte with a known good receipt
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ReceiptGoldenTest {
+	/*
+		golden/receipt.bin is the printer data the original server sent for packet() with the logo in golden/Logo.bin (a 16 x 2 dot
+		image). Changes to the layout, templates or printer commands that alter a single byte of it fail here.
+	*/
+	@TempDir
+	File dir;
+
+	private static byte[] golden;
+
+	@BeforeAll
+	public static void setUp() throws Exception {
+		ReceiptRenderer.setLayout(TextLayout.DEFAULT);
+		ReceiptRenderer.setLogo(Logo.load(new File(ReceiptGoldenTest.class.getResource("/golden/Logo.bin").toURI()).getPath(), 0));
+		golden = Files.readAllBytes(new File(ReceiptGoldenTest.class.getResource("/golden/receipt.bin").toURI()).toPath());
+	}
+
+	private static Packet packet() {
+		Packet p = new Packet();
+		p.to = new String[] {"Jane Doe", "123 Some Very Long Street Name That Wraps Around", "Town"};
+		p.from = new String[] {"Me"};
+		p.subtotal = 510;
+		p.shipping = 300;
+		p.tax = 30;
+		p.total = 840;
+		p.items.add(new Item("A really long item description that needs wrapping over lines", "SKU1", 2, 510));
+		p.messages = new String[] {"Thanks", "Bye"};
+		return p;
+	}
+
+	@Test
+	public void printedReceiptMatchesGolden() throws IOException {
+		File settings = new File(dir, "PrinterPi.properties");
+		Files.write(settings.toPath(), "printer.device=memory:golden\n".getBytes(StandardCharsets.UTF_8));
+		Printer printer = new Printer("golden", new Config(settings.getPath()));
+		printer.print(packet());
+		printer.close();
+
+		MemorySink sink = MemorySink.get("golden");
+		assertArrayEquals(golden, sink.take());
+		assertEquals(golden.length, sink.written());
+	}
+
+	@Test
+	public void streamedPartsMatchGolden() {
+		Packet p = packet();
+		ReceiptTemplate.Stream parts = ReceiptRenderer.stream(p);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] header = parts.header();
+		out.write(header, 0, header.length);
+		for (Item item: p.items) {
+			byte[] part = parts.item(item);
+			out.write(part, 0, part.length);
+		}
+		byte[] footer = parts.footer();
+		out.write(footer, 0, footer.length);
+		assertArrayEquals(golden, out.toByteArray());
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ *    TransmitterTest.java - Where the Transmitter cuts data into chunks, and how long it waits for room in the printer's buffer
+ *
+ *    Copyright (C) 2020  PolarPiBerry
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class TransmitterTest {
+	/*
+		At 10000 baud each byte takes 1 ms on the line, and at 125 mm/s each dot row takes 1 ms to print, so with 2 dot rows per line the
+		expected times below can be worked out by hand.
+	*/
+	private static final long MS = 1000000;
+
+	private static class FakeClock implements Transmitter.Clock { //Time only moves when the transmitter sleeps
+		long now;
+		List<Long> sleeps = new ArrayList<Long>();
+
+		public long nanoTime() {
+			return now;
+		}
+
+		public void sleep(long nanos) {
+			sleeps.add(nanos);
+			now += nanos;
+		}
+	}
+
+	private static class Chunks extends OutputStream { //Keeps each write separately
+		List<String> writes = new ArrayList<String>();
+
+		public void write(int b) {
+			writes.add(String.valueOf((char) b));
+		}
+
+		public void write(byte[] b, int off, int len) {
+			writes.add(new String(b, off, len, StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] join(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part: parts) out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+
+	private static Transmitter transmitter(OutputStream out, int bufferSize, int chunkSize, boolean hardwareFlow, FakeClock clock) {
+		Transmitter t = new Transmitter(out, 10000, bufferSize, 125, 2, chunkSize, hardwareFlow);
+		t.setClock(clock);
+		return t;
+	}
+
+	@Test
+	public void chunksEndAtLineEnds() throws IOException {
+		Chunks out = new Chunks();
+		transmitter(out, 4096, 256, true, new FakeClock()).send(bytes("abc\ndef\ngh"));
+		assertEquals(Arrays.asList("abc\n", "def\n", "gh"), out.writes);
+	}
+
+	@Test
+	public void longLinesAreCutAtTheChunkSize() throws IOException {
+		Chunks out = new Chunks();
+		transmitter(out, 4096, 4, true, new FakeClock()).send(bytes("abcdefghij\n"));
+		assertEquals(Arrays.asList("abcd", "efgh", "ij\n"), out.writes);
+	}
+
+	@Test
+	public void rasterIsSentInWholeRows() throws IOException {
+		byte[] image = new byte[8 + 2 * 5]; //GS v 0, 2 bytes wide and 5 rows high
+		image[0] = 0x1d; image[1] = 0x76; image[2] = 0x30; image[4] = 2; image[6] = 5;
+		Arrays.fill(image, 8, image.length, (byte) 0x0a); //Image bytes that look like line ends
+		Chunks out = new Chunks();
+		transmitter(out, 4096, 4, true, new FakeClock()).send(join(bytes("x\n"), image, bytes("y\n")));
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (String w: out.writes) sizes.add(w.length());
+		assertEquals(Arrays.asList(2, 8, 4, 4, 2, 2), sizes); //Header, then 2 rows (4 bytes) at a time
+	}
+
+	@Test
+	public void storedImageIsSentWhole() throws IOException {
+		byte[] store = new byte[3 + 4 + 8]; //FS q 1, 1 byte wide and 1 group of 8 dots high
+		store[0] = 0x1c; store[1] = 0x71; store[2] = 1; store[3] = 1; store[5] = 1;
+		byte[] image = {0x0a, 0x1b, 0x21, 0x10, 0x0d, 0x0a, 0x1b, 0x21}; //Line ends and ESC ! (double height) inside the image
+		System.arraycopy(image, 0, store, 7, image.length);
+		Chunks out = new Chunks();
+		FakeClock clock = new FakeClock();
+		Transmitter t = transmitter(out, 4096, 4, false, clock);
+		t.send(store);
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (String w: out.writes) sizes.add(w.length());
+		assertEquals(Arrays.asList(4, 4, 4, 3), sizes); //Cut only by the chunk size
+
+		t.caughtUp();
+		t.send(bytes("a\n"));
+		assertEquals(2 + 2, t.idleIn()); //2 bytes on the line, then one line of normal height (the image did not set double height)
+	}
+
+	@Test
+	public void doubleHeightLinesTakeTwiceAsLong() throws IOException {
+		Transmitter t = transmitter(new Chunks(), 4096, 256, false, new FakeClock());
+		t.send(new byte[] {0x1b, 0x21, 0x10, 'a', '\n'});
+		assertEquals(5 + 2 * 2, t.idleIn());
+	}
+
+	@Test
+	public void waitsUntilTheChunkFitsInTheBuffer() throws IOException {
+		FakeClock clock = new FakeClock();
+		Transmitter t = transmitter(new Chunks(), 8, 256, false, clock);
+		t.send(bytes("aaa\nbbb\nccc\n"));
+		//First line done at 4 + 2 ms, second at 8 ms; the third only fits once the first has printed
+		assertEquals(Arrays.asList(6 * MS), clock.sleeps);
+		assertEquals(6 * MS, clock.now);
+		assertEquals(12 - 6, t.idleIn()); //Third line arrives at 10 ms and prints by 12 ms
+	}
+
+	@Test
+	public void hardwareFlowControlNeverWaits() throws IOException {
+		FakeClock clock = new FakeClock();
+		Transmitter t = transmitter(new Chunks(), 8, 256, true, clock);
+		t.send(bytes("aaa\nbbb\nccc\nddd\n"));
+		assertTrue(clock.sleeps.isEmpty());
+	}
+}